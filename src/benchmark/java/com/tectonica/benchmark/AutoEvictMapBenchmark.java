@@ -0,0 +1,64 @@
+package com.tectonica.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tectonica.collections.AutoEvictMap;
+import com.tectonica.collections.AutoEvictMap.Factory;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+public class AutoEvictMapBenchmark
+{
+	@Param({ "16", "4096" })
+	public int keys;
+
+	@Param({ "0", "1024" })
+	public int maxIdleEntries;
+
+	private AutoEvictMap<Integer, Object> map;
+
+	@Setup
+	public void setUp()
+	{
+		Factory<Integer, Object> factory = new Factory<Integer, Object>()
+		{
+			@Override
+			public Object valueOf(Integer key)
+			{
+				return new int[16];
+			}
+		};
+		if (maxIdleEntries == 0)
+			map = new AutoEvictMap<>(factory);
+		else
+			map = new AutoEvictMap<>(factory, maxIdleEntries, 1, TimeUnit.MINUTES);
+	}
+
+	@Benchmark
+	public Object acquireRelease() throws InterruptedException
+	{
+		Integer key = ThreadLocalRandom.current().nextInt(keys);
+		Object value = map.acquire(key);
+		map.release(key);
+		return value;
+	}
+}
@@ -0,0 +1,128 @@
+package com.tectonica.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.tectonica.util.BitCube;
+import com.tectonica.util.BitCube.IntConsumer;
+import com.tectonica.util.BitCube.ZCursor;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BitCubeBenchmark
+{
+	private static final int X = 64, Y = 256, Z = 1024;
+
+	private BitCube cube;
+	private ZCursor cursor;
+	private int[] counts = new int[Y];
+	private long[] union = new long[Z / 64];
+	private int x, y;
+
+	@Setup
+	public void setUp()
+	{
+		Random rand = new Random(1);
+		cube = new BitCube(X, Y, Z);
+		for (int i = 0; i < X * Y * 16; i++)
+			cube.set(rand.nextInt(X), rand.nextInt(Y), rand.nextInt(Z), true);
+		cursor = cube.newCursorZ();
+	}
+
+	/**
+	 * moves to the next axis-Z row, so that consecutive invocations don't hit the same row
+	 */
+	private void nextRow()
+	{
+		if (++y == Y)
+		{
+			y = 0;
+			x = (x + 1) % X;
+		}
+	}
+
+	@Benchmark
+	public boolean get()
+	{
+		nextRow();
+		return cube.get(x, y, (x * y) % Z);
+	}
+
+	@Benchmark
+	public void set()
+	{
+		nextRow();
+		cube.set(x, y, (x * y) % Z, (y & 1) == 0);
+	}
+
+	@Benchmark
+	public int getBitCountZ()
+	{
+		nextRow();
+		return cube.getBitCountZ(x, y);
+	}
+
+	@Benchmark
+	public int[] getAxisZ()
+	{
+		nextRow();
+		return cube.getAxisZ(x, y);
+	}
+
+	@Benchmark
+	public int cursorZ()
+	{
+		nextRow();
+		int sum = 0;
+		cursor.reset(x, y);
+		for (int z = cursor.next(); z >= 0; z = cursor.next())
+			sum += z;
+		return sum;
+	}
+
+	@Benchmark
+	public void forEachSetZ(final Blackhole blackhole)
+	{
+		nextRow();
+		cube.forEachSetZ(x, y, new IntConsumer()
+		{
+			@Override
+			public void accept(int z)
+			{
+				blackhole.consume(z);
+			}
+		});
+	}
+
+	@Benchmark
+	public int[] getBitCountsZ()
+	{
+		nextRow();
+		cube.getBitCountsZ(x, counts);
+		return counts;
+	}
+
+	@Benchmark
+	public long[] orAxisY()
+	{
+		nextRow();
+		cube.orAxisY(x, union);
+		return union;
+	}
+}
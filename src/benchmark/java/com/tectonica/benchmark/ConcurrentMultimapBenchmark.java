@@ -0,0 +1,62 @@
+package com.tectonica.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tectonica.collections.ConcurrentMultimap;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+public class ConcurrentMultimapBenchmark
+{
+	private static final int KEYS = 1024;
+	private static final int VALUES = 64;
+
+	@Param({ "false", "true" })
+	public boolean copyOnWrite;
+
+	private ConcurrentMultimap<Integer, Integer> multimap;
+
+	@Setup
+	public void setUp()
+	{
+		multimap = new ConcurrentMultimap<>(false, copyOnWrite);
+		for (int k = 0; k < KEYS; k++)
+			for (int v = 0; v < VALUES; v += 2)
+				multimap.put(k, v);
+	}
+
+	@Benchmark
+	public Object get()
+	{
+		return multimap.get(ThreadLocalRandom.current().nextInt(KEYS));
+	}
+
+	@Benchmark
+	public int putRemove()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Integer key = random.nextInt(KEYS);
+		Integer value = 2 * random.nextInt(VALUES / 2) + 1; // odd values are not in the initial sets
+		multimap.put(key, value);
+		return multimap.remove(key, value);
+	}
+}
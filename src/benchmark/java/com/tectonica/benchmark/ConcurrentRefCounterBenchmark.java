@@ -0,0 +1,53 @@
+package com.tectonica.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tectonica.collections.ConcurrentRefCounter;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+public class ConcurrentRefCounterBenchmark
+{
+	@Param({ "1", "1024" })
+	public int keys;
+
+	@Param({ "1", "8" })
+	public int stripes;
+
+	private ConcurrentRefCounter<Integer> counter;
+
+	@Setup
+	public void setUp()
+	{
+		counter = new ConcurrentRefCounter<>(stripes);
+		for (int i = 0; i < keys; i++)
+			counter.increase(i); // keeps the keys alive, so that the benchmark measures the counting rather than the map churn
+	}
+
+	@Benchmark
+	public int increaseDecrease()
+	{
+		Integer key = ThreadLocalRandom.current().nextInt(keys);
+		counter.increase(key);
+		return counter.decrease(key);
+	}
+}
@@ -0,0 +1,63 @@
+package com.tectonica.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tectonica.thirdparty.Jackson1;
+import com.tectonica.thirdparty.Jackson2;
+
+/**
+ * compares the two generations of Jackson, through {@link Jackson1} and {@link Jackson2}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JsonBenchmark
+{
+	private Sample sample;
+	private String json;
+
+	@Setup
+	public void setUp()
+	{
+		sample = Sample.generate(2);
+		json = Jackson2.fieldsToJson(sample);
+	}
+
+	@Benchmark
+	public String jackson1Write()
+	{
+		return Jackson1.fieldsToJson(sample);
+	}
+
+	@Benchmark
+	public Sample jackson1Read()
+	{
+		return Jackson1.fieldsFromJson(json, Sample.class);
+	}
+
+	@Benchmark
+	public String jackson2Write()
+	{
+		return Jackson2.fieldsToJson(sample);
+	}
+
+	@Benchmark
+	public Sample jackson2Read()
+	{
+		return Jackson2.fieldsFromJson(json, Sample.class);
+	}
+}
@@ -0,0 +1,37 @@
+package com.tectonica.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a small object graph, shared by the serialization benchmarks
+ */
+public class Sample implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	public long id;
+	public String name;
+	public int[] values;
+	public List<String> tags;
+	public List<Sample> children;
+
+	public static Sample generate(int depth)
+	{
+		Sample sample = new Sample();
+		sample.id = 1_000_000_007L * depth;
+		sample.name = "sample-" + depth;
+		sample.values = new int[16];
+		for (int i = 0; i < sample.values.length; i++)
+			sample.values[i] = i * depth;
+		sample.tags = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			sample.tags.add("tag" + i);
+		sample.children = new ArrayList<>();
+		if (depth > 0)
+			for (int i = 0; i < 3; i++)
+				sample.children.add(generate(depth - 1));
+		return sample;
+	}
+}
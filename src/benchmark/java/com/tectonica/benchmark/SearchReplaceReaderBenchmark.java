@@ -0,0 +1,60 @@
+package com.tectonica.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tectonica.util.SearchReplaceReader;
+import com.tectonica.util.SearchReplaceReader.MapTokenResolver;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SearchReplaceReaderBenchmark
+{
+	private String template;
+	private MapTokenResolver resolver;
+	private char[] buffer = new char[4096];
+
+	@Setup
+	public void setUp()
+	{
+		Map<String, String> tokens = new HashMap<>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+		{
+			tokens.put("token" + i, "value #" + i);
+			sb.append("some plain text around ${token").append(i).append("}, and a $ sign that isn't a token\n");
+		}
+		template = sb.toString();
+		resolver = new MapTokenResolver(tokens);
+	}
+
+	@Benchmark
+	public int replaceAll() throws IOException
+	{
+		int total = 0;
+		try (SearchReplaceReader reader = new SearchReplaceReader(new StringReader(template), resolver))
+		{
+			for (int n; (n = reader.read(buffer)) > 0;)
+				total += n;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,96 @@
+package com.tectonica.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.tectonica.thirdparty.KryoUtil;
+import com.tectonica.util.SerializeUtil;
+
+/**
+ * compares {@link KryoUtil} with standard Java serialization through {@link SerializeUtil}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SerializationBenchmark
+{
+	private Sample sample;
+	private byte[] kryoBytes;
+	private byte[] javaBytes;
+	private ByteBuffer directOutput = ByteBuffer.allocateDirect(64 * 1024);
+	private ByteBuffer directInput;
+
+	@Setup
+	public void setUp()
+	{
+		sample = Sample.generate(2);
+		kryoBytes = KryoUtil.objToBytes(sample);
+		javaBytes = SerializeUtil.objToBytes(sample);
+		directInput = ByteBuffer.allocateDirect(kryoBytes.length);
+		directInput.put(kryoBytes).flip();
+	}
+
+	@Benchmark
+	public byte[] kryoWrite()
+	{
+		return KryoUtil.objToBytes(sample);
+	}
+
+	@Benchmark
+	public Sample kryoRead()
+	{
+		return KryoUtil.bytesToObj(kryoBytes, Sample.class);
+	}
+
+	@Benchmark
+	public int kryoWriteDirect()
+	{
+		directOutput.clear();
+		return KryoUtil.objToBuffer(sample, directOutput);
+	}
+
+	@Benchmark
+	public Sample kryoReadDirect()
+	{
+		directInput.rewind();
+		return KryoUtil.bufferToObj(directInput, Sample.class);
+	}
+
+	@Benchmark
+	public Sample kryoCopy()
+	{
+		return KryoUtil.copyOf(sample);
+	}
+
+	@Benchmark
+	public byte[] javaWrite()
+	{
+		return SerializeUtil.objToBytes(sample);
+	}
+
+	@Benchmark
+	public Sample javaRead()
+	{
+		return SerializeUtil.bytesToObj(javaBytes, Sample.class);
+	}
+
+	@Benchmark
+	public Sample javaCopy()
+	{
+		return SerializeUtil.copyOf(sample);
+	}
+}
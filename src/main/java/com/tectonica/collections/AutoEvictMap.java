@@ -19,10 +19,19 @@
 package com.tectonica.collections;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Concurrent, thread-safe container, retaining a key-value map with a reference count mechanism. Instead of the standard {@code get},
@@ -37,6 +46,37 @@ import java.util.concurrent.FutureTask;
  * When the class is constructed a default {@link Factory} may be provided, which will generate the values when {@link #acquire(Object)}
  * needs them. Alternatively, on each invocation of {@link #acquire(Object, Factory)}, a custom ad-hoc factory may be provided for the
  * particular key acquired. When keys are released, no additional action is taken.
+ * <p>
+ * Values are normally created on the thread of the first acquirer, while concurrent acquirers of the same key wait for it. Using
+ * {@link #acquireAsync(Object, Executor)} the creation is handed to an {@link Executor} instead, and the caller gets a {@link Future}
+ * right away. If a creation fails or is cancelled, the value is removed from the map (so that the next acquirer retries) and the references
+ * taken on it are dropped.
+ * <p>
+ * Consequently, a release must only follow a <b>successful</b> acquire. An {@link #acquire(Object)} that throws holds no reference, and
+ * releasing its key anyway (e.g. in a {@code finally} block that also covers the acquire) would decrement the reference count of whatever
+ * value a retrying thread has meanwhile created for the same key, possibly evicting it while in use. The acquire should therefore precede
+ * the {@code try} block, as in:
+ * 
+ * <pre>
+ * V value = map.acquire(key);
+ * try
+ * {
+ * 	...
+ * }
+ * finally
+ * {
+ * 	map.release(key);
+ * }
+ * </pre>
+ * 
+ * A {@link Future} returned by {@code acquireAsync} may fail after the caller has started using it, so it should be released with
+ * {@link #release(Future)}, which does nothing if the creation behind that particular future has failed.
+ * <p>
+ * By default a value is evicted as soon as its last reference is released. For values that are expensive to create, the map may be
+ * constructed with a retention policy, in which case released values are kept <i>idle</i> (with zero references) and revived by the next
+ * {@code acquire}. Idle values are evicted in LRU order once their total weight exceeds {@code maxIdleWeight}, or once they stay idle
+ * longer than {@code idleTtl}. Eviction is performed lazily, as part of {@link #release(Object)}, or explicitly by calling
+ * {@link #cleanUp()}.
  * 
  * @author Zach Melamed
  */
@@ -47,17 +87,68 @@ public class AutoEvictMap<K, V>
 		V valueOf(K key);
 	}
 
-	private final ConcurrentMap<K, Holder<K, V>> map = new ConcurrentHashMap<K, Holder<K, V>>();
+	/**
+	 * Determines the weight of an idle value, in the same units as {@code maxIdleWeight}
+	 */
+	public static interface Weigher<K, V>
+	{
+		long weightOf(K key, V value);
+	}
+
+	private final ConcurrentMap<K, Holder> map = new ConcurrentHashMap<K, Holder>();
 	private final Factory<K, V> defaultFactory;
 
+	// retention policy
+	private final long maxIdleWeight;
+	private final long idleTtlNanos;
+	private final Weigher<K, V> weigher;
+
+	// idle values, in the order they were released (may contain stale entries, which are skipped)
+	private final ConcurrentLinkedQueue<IdleEntry> idleQueue = new ConcurrentLinkedQueue<IdleEntry>();
+	private final AtomicInteger idleQueueSize = new AtomicInteger();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicLong idleWeight = new AtomicLong();
+
+	// statistics
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong idleHitCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
 	public AutoEvictMap()
 	{
-		this.defaultFactory = null;
+		this(null);
 	}
 
 	public AutoEvictMap(Factory<K, V> defaultFactory)
 	{
+		this(defaultFactory, 0L, 0L, TimeUnit.MILLISECONDS, null);
+	}
+
+	/**
+	 * constructs a map that retains up to {@code maxIdleEntries} released values, each for no longer than {@code idleTtl}
+	 */
+	public AutoEvictMap(Factory<K, V> defaultFactory, int maxIdleEntries, long idleTtl, TimeUnit unit)
+	{
+		this(defaultFactory, maxIdleEntries, idleTtl, unit, null);
+	}
+
+	/**
+	 * constructs a map that retains released values, evicting them when their total weight exceeds {@code maxIdleWeight} or when they
+	 * stay idle longer than {@code idleTtl}. A {@code maxIdleWeight} of zero turns retention off, a non-positive {@code idleTtl} means no
+	 * expiration. If {@code weigher} is null, each value weighs 1.
+	 */
+	public AutoEvictMap(Factory<K, V> defaultFactory, long maxIdleWeight, long idleTtl, TimeUnit unit, Weigher<K, V> weigher)
+	{
+		if (maxIdleWeight < 0L)
+			throw new IllegalArgumentException("maxIdleWeight");
+		if (unit == null)
+			throw new NullPointerException("unit");
+
 		this.defaultFactory = defaultFactory;
+		this.maxIdleWeight = maxIdleWeight;
+		this.idleTtlNanos = (idleTtl > 0L) ? unit.toNanos(idleTtl) : 0L;
+		this.weigher = weigher;
 	}
 
 	public V acquire(final K key) throws InterruptedException
@@ -69,98 +160,413 @@ public class AutoEvictMap<K, V>
 	}
 
 	public V acquire(final K key, final Factory<K, V> customFactory) throws InterruptedException
+	{
+		return acquireHolder(key, customFactory, null).getValue();
+	}
+
+	/**
+	 * same as {@link #acquire(Object)}, except that if the value needs to be created, the default factory is invoked by the given executor.
+	 * the returned future should be released with {@link #release(Future)}, possibly before it completes, in which case a failed creation is
+	 * simply discarded
+	 */
+	public Future<V> acquireAsync(final K key, final Executor executor)
+	{
+		if (defaultFactory == null)
+			throw new NullPointerException("defaultFactory");
+
+		return acquireAsync(key, defaultFactory, executor);
+	}
+
+	public Future<V> acquireAsync(final K key, final Factory<K, V> customFactory, final Executor executor)
+	{
+		if (executor == null)
+			throw new NullPointerException("executor");
+
+		return acquireHolder(key, customFactory, executor);
+	}
+
+	/**
+	 * increases the ref-count of the key's holder, creating it if necessary. a newly created value is computed by the executor, or by the
+	 * current thread if the executor is null
+	 */
+	private Holder acquireHolder(final K key, final Factory<K, V> customFactory, final Executor executor)
 	{
 		if (key == null)
 			throw new NullPointerException("key");
 		if (customFactory == null)
 			throw new NullPointerException("customFactory");
 
-		Holder<K, V> holder;
+		Holder holder;
 		while (true)
 		{
 			holder = map.get(key);
 			if (holder == null)
 			{
-				if (map.putIfAbsent(key, holder = new Holder<K, V>(key, customFactory)) == null)
+				if (map.putIfAbsent(key, holder = new Holder(key, customFactory)) == null)
 				{
 					// initial creation of the value
-					holder.run();
+					missCount.incrementAndGet();
+					if (executor == null)
+						holder.run();
+					else
+						holder.runBy(executor);
 					break;
 				}
+				continue;
 			}
-			else
+
+			int refCount = holder.refCount;
+			if (refCount == DEAD || holder.isFailed())
+			{
+				map.remove(key, holder); // help the releasing (or failing) thread to remove the tombstone
+			}
+			else if (refCount == 0)
+			{
+				if (isExpired(holder.idleSince, System.nanoTime()))
+				{
+					if (holder.compareAndSet(0, DEAD))
+					{
+						map.remove(key, holder);
+						onEvicted(holder);
+					}
+				}
+				else if (holder.compareAndSet(0, 1))
+				{
+					onRevived(holder);
+					break; // idle value brought back to life
+				}
+			}
+			else if (holder.compareAndSet(refCount, refCount + 1))
 			{
-				if (map.replace(key, holder, holder = holder.inc()))
-					break; // ref-count increased
+				hitCount.incrementAndGet();
+				break; // ref-count increased
 			}
 		}
 
-		return holder.get(); // NOTE: think whether to remove from map in case of exception/cancellation
+		return holder;
 	}
 
+	/**
+	 * decreases the reference count of a key. returns true if this was the last reference, in which case the value is either evicted or,
+	 * if a retention policy was set, kept idle.
+	 * <p>
+	 * <b>NOTE:</b> must not be called after an acquire that failed, as that acquire has already dropped its reference, and this call would
+	 * decrement a value created later for the same key. to release the result of {@code acquireAsync}, prefer {@link #release(Future)}
+	 */
 	public boolean release(K key)
 	{
 		if (key == null)
 			throw new NullPointerException("key");
 
+		return releaseHolder(key, null);
+	}
+
+	/**
+	 * releases a reference taken by {@link #acquireAsync(Object, Executor)}. unlike {@link #release(Object)}, this is safe to call even if
+	 * the future has failed (e.g. in a {@code finally} block), since only the value created by that future is affected. returns true if
+	 * this was the last reference to it (or if it had already been removed)
+	 */
+	public boolean release(Future<V> acquired)
+	{
+		if (acquired == null)
+			throw new NullPointerException("acquired");
+		if (!(acquired instanceof AutoEvictMap.Holder) || !((AutoEvictMap<?, ?>.Holder) acquired).belongsTo(this))
+			throw new IllegalArgumentException("not acquired from this map");
+
+		@SuppressWarnings("unchecked")
+		Holder holder = (Holder) acquired;
+		return releaseHolder(holder.key, holder);
+	}
+
+	/**
+	 * decreases the ref-count of the key's holder. if {@code expected} is non-null, only that particular holder is released, so that a
+	 * holder that has since been replaced (after its creation failed) is not confused with its replacement
+	 */
+	private boolean releaseHolder(K key, Holder expected)
+	{
 		while (true)
 		{
-			Holder<K, V> holder = map.get(key);
-			if (holder == null)
+			Holder holder = map.get(key);
+			if (holder == null || (expected != null && holder != expected))
 				return true; // was already removed
-			if (holder.isInitial())
+
+			int refCount = holder.refCount;
+			if (refCount == DEAD)
 			{
-				if (map.remove(key, holder.initial()))
-					return true; // removed now
+				map.remove(key, holder);
+				return true; // being removed by another thread
 			}
-			else
+			if (refCount == 0)
+				return true; // was already released
+			if (refCount == 1)
 			{
-				if (map.replace(key, holder, holder.dec()))
-					return false; // not removed, just decreased ref-count
+				if (maxIdleWeight == 0L)
+				{
+					if (holder.compareAndSet(1, DEAD))
+					{
+						map.remove(key, holder);
+						return true; // removed now
+					}
+				}
+				else if (weigher != null && !holder.isDone())
+				{
+					// released before its creation completed, so it can't be weighed without blocking. discard it rather than retain it
+					if (holder.compareAndSet(1, DEAD))
+					{
+						map.remove(key, holder);
+						holder.cancel(false);
+						return true; // removed now
+					}
+				}
+				else
+				{
+					holder.prepareIdle(System.nanoTime(), weigh(key, holder));
+					if (holder.compareAndSet(1, 0))
+					{
+						onIdle(key, holder);
+						return true; // retained for later
+					}
+				}
 			}
+			else if (holder.compareAndSet(refCount, refCount - 1))
+				return false; // not removed, just decreased ref-count
 		}
 	}
 
+	/**
+	 * evicts idle values that exceed the retention policy. this is done automatically on {@link #release(Object)}, but may also be called
+	 * periodically by the user, to expire idle values when the map is otherwise inactive
+	 */
+	public void cleanUp()
+	{
+		if (maxIdleWeight > 0L)
+			evictIdle(System.nanoTime());
+	}
+
 	public int size()
 	{
 		return map.size();
 	}
 
+	/**
+	 * returns the number of values currently retained with zero references
+	 */
+	public int idleSize()
+	{
+		return idleCount.get();
+	}
+
 	public void clear()
 	{
 		map.clear();
+		idleQueue.clear();
+		idleQueueSize.set(0);
+		idleCount.set(0);
+		idleWeight.set(0L);
+	}
+
+	/**
+	 * returns the number of acquires that found an existing value (either in use or idle)
+	 */
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	/**
+	 * returns the number of acquires that had to create a new value
+	 */
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	/**
+	 * returns the number of acquires that revived an idle value, i.e. the number of rebuilds saved by the retention policy
+	 */
+	public long getIdleHitCount()
+	{
+		return idleHitCount.get();
+	}
+
+	/**
+	 * returns the number of idle values evicted by the retention policy
+	 */
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
 	}
 
 	// /////////////////////////////////////////////////////////////////////////////////////////
 
-	private static class Holder<K, V>
+	private long weigh(K key, Holder holder)
 	{
-		private final FutureTask<V> ft;
-		private final int refCount;
+		if (weigher == null)
+			return 1L;
+		try
+		{
+			return weigher.weightOf(key, holder.getValue());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return 1L; // impossible, as the value has already been computed (see release)
+		}
+		catch (RuntimeException e)
+		{
+			return 1L; // a failed creation, the holder removes itself from the map
+		}
+	}
+
+	private boolean isExpired(long idleSince, long now)
+	{
+		return idleTtlNanos > 0L && (now - idleSince) >= idleTtlNanos;
+	}
+
+	private void onIdle(K key, Holder idle)
+	{
+		long idleSince = idle.idleSince;
+		idleCount.incrementAndGet();
+		idleWeight.addAndGet(idle.weight);
+		idleQueue.add(new IdleEntry(key, idle, idleSince));
+		idleQueueSize.incrementAndGet();
+		evictIdle(idleSince);
+	}
+
+	private void onRevived(Holder idle)
+	{
+		idleCount.decrementAndGet();
+		idleWeight.addAndGet(-idle.weight);
+		hitCount.incrementAndGet();
+		idleHitCount.incrementAndGet();
+	}
+
+	private void onEvicted(Holder idle)
+	{
+		idleCount.decrementAndGet();
+		idleWeight.addAndGet(-idle.weight);
+		evictionCount.incrementAndGet();
+	}
+
+	/**
+	 * evicts an idle holder whose (asynchronous) creation failed after it was released. its queue entry is removed here, unless it wasn't
+	 * added yet, in which case it will be enqueued as stale and discarded later
+	 */
+	private void onFailedIdle(Holder idle)
+	{
+		onEvicted(idle);
+		for (IdleEntry entry : idleQueue)
+		{
+			if (entry.holder == idle)
+			{
+				if (idleQueue.remove(entry))
+					idleQueueSize.decrementAndGet();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * evicts from the head of the LRU queue, for as long as the retention policy is violated. queue entries whose holder is no longer idle
+	 * since the time they were enqueued (i.e. revived or already evicted) are discarded along the way, and the queue is compacted when such
+	 * entries pile up. each entry is enqueued once and polled at most a constant number of times, so the cost is amortized O(1) per release
+	 */
+	private void evictIdle(long now)
+	{
+		while (true)
+		{
+			IdleEntry head = idleQueue.peek();
+			if (head == null)
+				return;
+			boolean overweight = idleWeight.get() > maxIdleWeight;
+			boolean bloated = idleQueueSize.get() > 2 * idleCount.get() + 16;
+			if (!overweight && !bloated && !isExpired(head.idleSince, now) && !head.isStale())
+				return; // the oldest idle value is fine, so are the rest
+
+			IdleEntry entry = idleQueue.poll(); // not necessarily 'head', if another thread polled concurrently
+			if (entry == null)
+				return;
+			idleQueueSize.decrementAndGet();
+			if (entry.isStale())
+				continue;
+			if (overweight || isExpired(entry.idleSince, now))
+			{
+				if (entry.holder.compareAndSet(0, DEAD))
+				{
+					map.remove(entry.key, entry.holder);
+					onEvicted(entry.holder);
+				}
+			}
+			else
+			{
+				// still a valid idle value, that was polled only to compact the queue
+				idleQueue.add(entry);
+				idleQueueSize.incrementAndGet();
+				if (!overweight)
+					return;
+			}
+		}
+	}
+
+	private class IdleEntry
+	{
+		private final K key;
+		private final Holder holder;
+		private final long idleSince;
+
+		private IdleEntry(K key, Holder holder, long idleSince)
+		{
+			this.key = key;
+			this.holder = holder;
+			this.idleSince = idleSince;
+		}
+
+		private boolean isStale()
+		{
+			return holder.refCount != 0 || holder.idleSince != idleSince;
+		}
+	}
+
+	/**
+	 * ref-count value of a holder that is being removed from the map. once set, the holder is never reused, and threads that encounter it
+	 * help removing it before retrying
+	 */
+	private static final int DEAD = -1;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<AutoEvictMap.Holder> REF_COUNT = AtomicIntegerFieldUpdater.newUpdater(
+			AutoEvictMap.Holder.class, "refCount");
+
+	/**
+	 * single, long-lived, container of a value and its reference count. the count is updated in-place with CAS, so that acquiring and
+	 * releasing an existing value allocates nothing. a count of 0 means the value is idle (retained), {@link #DEAD} means it's a tombstone.
+	 * the holder is also the task that creates the value, and it removes itself from the map if that creation fails or is cancelled
+	 */
+	private class Holder extends FutureTask<V>
+	{
+		private final K key;
+		volatile int refCount; // not private, for the field updater
+		private volatile long idleSince; // relevant only when refCount is 0
+		private long weight; // relevant only when refCount is 0, published by the CAS on refCount
 
 		public Holder(final K key, final Factory<K, V> generator)
 		{
-			ft = new FutureTask<V>(new Callable<V>()
+			super(new Callable<V>()
 			{
 				public V call() throws InterruptedException
 				{
 					return generator.valueOf(key);
 				}
 			});
-			refCount = 1;
+			this.key = key;
+			this.refCount = 1;
 		}
 
-		private Holder(FutureTask<V> ft, int refCount)
-		{
-			this.ft = ft;
-			this.refCount = refCount;
-		}
-
-		public V get() throws InterruptedException
+		public V getValue() throws InterruptedException
 		{
 			try
 			{
-				return ft.get();
+				return get();
 			}
 			catch (ExecutionException e)
 			{
@@ -174,36 +580,76 @@ public class AutoEvictMap<K, V>
 			}
 		}
 
-		public void run()
+		public void runBy(Executor executor)
 		{
-			ft.run();
+			try
+			{
+				executor.execute(this);
+			}
+			catch (RejectedExecutionException e)
+			{
+				setException(e);
+			}
 		}
 
-		public Holder<K, V> inc()
+		@Override
+		protected void done()
 		{
-			return new Holder<K, V>(ft, refCount + 1);
+			if (!isFailed())
+				return;
+			while (true)
+			{
+				int refCount = this.refCount;
+				if (refCount == DEAD)
+					break;
+				if (compareAndSet(refCount, DEAD))
+				{
+					if (refCount == 0)
+						onFailedIdle(this); // released while still pending, so it was accounted as idle
+					break;
+				}
+			}
+			map.remove(key, this);
 		}
 
-		public Holder<K, V> dec()
+		public boolean belongsTo(AutoEvictMap<?, ?> owner)
 		{
-			return new Holder<K, V>(ft, refCount - 1);
+			return AutoEvictMap.this == owner;
 		}
 
-		public Holder<K, V> initial()
+		@SuppressWarnings("unchecked")
+		public boolean compareAndSet(int expect, int update)
 		{
-			return new Holder<K, V>(ft, 1);
+			return REF_COUNT.compareAndSet(this, expect, update);
 		}
 
-		public boolean isInitial()
+		/**
+		 * to be called by the last releaser, prior to setting the ref-count to 0
+		 */
+		public void prepareIdle(long now, long weight)
 		{
-			return refCount == 1;
+			this.weight = weight;
+			this.idleSince = now;
 		}
 
-		@Override
-		@SuppressWarnings("unchecked")
-		public boolean equals(Object obj)
+		public boolean isFailed()
 		{
-			return (refCount == ((Holder<K, V>) obj).refCount);
+			if (!isDone())
+				return false;
+			try
+			{
+				get();
+				return false;
+			}
+			catch (ExecutionException | CancellationException e)
+			{
+				return true;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false; // impossible, as the future is done
+			}
 		}
 	}
-}
\ No newline at end of file
+}
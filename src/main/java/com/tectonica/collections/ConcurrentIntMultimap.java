@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link ConcurrentMultimap} specialized for {@code int} values, which stores the values of each key in a compact, sorted, {@code int[]}
+ * rather than in a set of boxed integers (taking 4 bytes per value instead of roughly 50).
+ * <p>
+ * The arrays are never modified once stored in the map. Instead, {@code put} and {@code remove} atomically replace the array of a key with
+ * a modified copy, so that reads take no locks. This makes the class suitable for keys with up to several thousands values, that are read
+ * more frequently than written.
+ * 
+ * @author Zach Melamed
+ */
+public class ConcurrentIntMultimap<K>
+{
+	protected ConcurrentMap<K, int[]> map;
+
+	public ConcurrentIntMultimap()
+	{
+		initMap();
+	}
+
+	protected void initMap()
+	{
+		map = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * adds a value to a key (creating it if necessary), and returns the number of values in that key
+	 */
+	public int put(K key, int value)
+	{
+		while (true)
+		{
+			int[] values = map.get(key);
+			if (values == null)
+			{
+				if (map.putIfAbsent(key, new int[] { value }) == null)
+					return 1;
+			}
+			else
+			{
+				int index = Arrays.binarySearch(values, value);
+				if (index >= 0)
+					return values.length; // already there
+				index = -(index + 1);
+				int[] updated = new int[values.length + 1];
+				System.arraycopy(values, 0, updated, 0, index);
+				updated[index] = value;
+				System.arraycopy(values, index, updated, index + 1, values.length - index);
+				if (map.replace(key, values, updated))
+					return updated.length;
+			}
+		}
+	}
+
+	/**
+	 * removes a value from a key (removing the key if it has no more values), and returns the number of values left in that key
+	 */
+	public int remove(K key, int value)
+	{
+		while (true)
+		{
+			int[] values = map.get(key);
+			if (values == null)
+				return 0;
+			int index = Arrays.binarySearch(values, value);
+			if (index < 0)
+				return values.length; // not there
+			if (values.length == 1)
+			{
+				if (map.remove(key, values))
+					return 0;
+			}
+			else
+			{
+				int[] updated = new int[values.length - 1];
+				System.arraycopy(values, 0, updated, 0, index);
+				System.arraycopy(values, index + 1, updated, index, updated.length - index);
+				if (map.replace(key, values, updated))
+					return updated.length;
+			}
+		}
+	}
+
+	/**
+	 * returns a sorted copy of the values of a key, or null if it doesn't exist
+	 */
+	public int[] get(K key)
+	{
+		int[] values = map.get(key);
+		return (values == null) ? null : values.clone();
+	}
+
+	public boolean contains(K key, int value)
+	{
+		int[] values = map.get(key);
+		return values != null && Arrays.binarySearch(values, value) >= 0;
+	}
+
+	/**
+	 * returns the number of values in a key, or 0 if it doesn't exist
+	 */
+	public int count(K key)
+	{
+		int[] values = map.get(key);
+		return (values == null) ? 0 : values.length;
+	}
+
+	/**
+	 * returns the sorted union of the values of the given keys
+	 */
+	public int[] union(Collection<K> keys)
+	{
+		List<int[]> arrays = new ArrayList<>(keys.size());
+		for (K key : keys)
+		{
+			int[] values = map.get(key);
+			if (values != null)
+				arrays.add(values);
+		}
+		return unionOf(arrays);
+	}
+
+	/**
+	 * returns the sorted intersection of the values of the given keys (empty if any of them doesn't exist)
+	 */
+	public int[] intersection(Collection<K> keys)
+	{
+		Iterator<K> iter = keys.iterator();
+		if (!iter.hasNext())
+			return new int[0];
+		int[] result = get(iter.next());
+		while (result != null && result.length > 0 && iter.hasNext())
+		{
+			int[] values = map.get(iter.next());
+			result = (values == null) ? null : intersection(result, values);
+		}
+		return (result == null) ? new int[0] : result;
+	}
+
+	public void removeFromAll(int value)
+	{
+		for (K key : map.keySet())
+			remove(key, value);
+	}
+
+	public void clear()
+	{
+		map.clear();
+	}
+
+	// /////////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * returns the sorted union of several sorted arrays. they are concatenated once and sorted, rather than merged pairwise (which would
+	 * copy the accumulated result again for each array)
+	 */
+	protected static int[] unionOf(Collection<int[]> arrays)
+	{
+		if (arrays.size() == 1)
+			return arrays.iterator().next().clone();
+		int length = 0;
+		for (int[] values : arrays)
+			length += values.length;
+		int[] result = new int[length];
+		int offset = 0;
+		for (int[] values : arrays)
+		{
+			System.arraycopy(values, 0, result, offset, values.length);
+			offset += values.length;
+		}
+		Arrays.sort(result);
+
+		// remove duplicates in place
+		int k = 0;
+		for (int i = 0; i < result.length; i++)
+			if (k == 0 || result[i] != result[k - 1])
+				result[k++] = result[i];
+		return (k == result.length) ? result : Arrays.copyOf(result, k);
+	}
+
+	protected static int[] intersection(int[] a, int[] b)
+	{
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.length)
+		{
+			if (a[i] < b[j])
+				i++;
+			else if (a[i] > b[j])
+				j++;
+			else
+			{
+				result[k++] = a[i++];
+				j++;
+			}
+		}
+		return (k == result.length) ? result : Arrays.copyOf(result, k);
+	}
+}
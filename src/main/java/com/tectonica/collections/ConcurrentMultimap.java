@@ -18,16 +18,38 @@
 
 package com.tectonica.collections;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Concurrent, thread-safe, map of keys to sets of values.
+ * <p>
+ * By default, each key holds a mutable set that is modified under lock, and {@link #get(Object)} returns a copy of it. For read-mostly
+ * usage, the map may be constructed in {@code copyOnWrite} mode, in which each key holds an immutable set that is atomically replaced by a
+ * modified copy on every {@code put} and {@code remove}. {@link #get(Object)} then returns the current (unmodifiable) set as-is, with no
+ * copying and no locking, at the expense of copying on writes.
+ * <p>
+ * The map may also maintain a reverse index, from each value to the keys containing it, so that {@link #removeFromAll(Object)} and
+ * {@link #keysOf(Object)} don't need to visit all keys. All updates involving a given value are then serialized on that value's entry in
+ * the index.
+ * 
+ * @author Zach Melamed
+ */
 public class ConcurrentMultimap<K, V>
 {
+	public static interface Consumer<V>
+	{
+		void accept(V value);
+	}
+
 	protected final boolean sortValueSets;
+	protected final boolean copyOnWrite;
 	protected ConcurrentMap<K, Set<V>> map;
+	protected final ConcurrentMap<V, Set<K>> reverseIndex; // null, unless indexing values
 
 	public ConcurrentMultimap()
 	{
@@ -35,8 +57,20 @@ public class ConcurrentMultimap<K, V>
 	}
 
 	public ConcurrentMultimap(boolean sortValueSets)
+	{
+		this(sortValueSets, false);
+	}
+
+	public ConcurrentMultimap(boolean sortValueSets, boolean copyOnWrite)
+	{
+		this(sortValueSets, copyOnWrite, false);
+	}
+
+	public ConcurrentMultimap(boolean sortValueSets, boolean copyOnWrite, boolean indexValues)
 	{
 		this.sortValueSets = sortValueSets;
+		this.copyOnWrite = copyOnWrite;
+		this.reverseIndex = indexValues ? new ConcurrentHashMap<V, Set<K>>() : null;
 		initMap();
 	}
 
@@ -52,6 +86,31 @@ public class ConcurrentMultimap<K, V>
 
 	public int put(K key, V value, boolean autoCreateKey)
 	{
+		if (reverseIndex == null)
+			return putValue(key, value, autoCreateKey);
+
+		while (true)
+		{
+			Set<K> keys = indexEntryOf(value);
+			synchronized (keys)
+			{
+				if (reverseIndex.get(value) != keys)
+					continue; // the entry was discarded while we were waiting for it
+				int size = putValue(key, value, autoCreateKey);
+				if (size > 0)
+					keys.add(key);
+				else if (keys.isEmpty())
+					reverseIndex.remove(value, keys);
+				return size;
+			}
+		}
+	}
+
+	private int putValue(K key, V value, boolean autoCreateKey)
+	{
+		if (copyOnWrite)
+			return putCopyOnWrite(key, value, autoCreateKey);
+
 		Set<V> valuesSet;
 		if (autoCreateKey)
 		{
@@ -73,11 +132,17 @@ public class ConcurrentMultimap<K, V>
 		return valuesSet.size();
 	}
 
+	/**
+	 * returns the values of a key, or null if it doesn't exist. the returned set is never affected by future changes to the map, and in
+	 * {@code copyOnWrite} mode it's also unmodifiable
+	 */
 	public Set<V> get(K key)
 	{
 		Set<V> valuesSet = map.get(key);
 		if (valuesSet == null)
 			return null;
+		if (copyOnWrite)
+			return valuesSet; // immutable snapshot
 		synchronized (valuesSet)
 		{
 			// we return a copy of the set, so that the caller won't be affected by future changes
@@ -85,8 +150,59 @@ public class ConcurrentMultimap<K, V>
 		}
 	}
 
+	/**
+	 * passes each of the values of a key to the consumer, without copying them first. unless in {@code copyOnWrite} mode, this is done under
+	 * a lock that blocks writers of the same key
+	 */
+	public void forEach(K key, Consumer<? super V> consumer)
+	{
+		Set<V> valuesSet = map.get(key);
+		if (valuesSet == null)
+			return;
+		if (copyOnWrite)
+		{
+			for (V value : valuesSet)
+				consumer.accept(value);
+			return;
+		}
+		synchronized (valuesSet)
+		{
+			for (V value : valuesSet)
+				consumer.accept(value);
+		}
+	}
+
 	public int remove(K key, V value)
 	{
+		if (reverseIndex == null)
+			return removeValue(key, value);
+
+		while (true)
+		{
+			Set<K> keys = reverseIndex.get(value);
+			if (keys == null)
+			{
+				Set<V> valuesSet = map.get(key);
+				return (valuesSet == null) ? 0 : valuesSet.size(); // the value isn't contained anywhere
+			}
+			synchronized (keys)
+			{
+				if (reverseIndex.get(value) != keys)
+					continue;
+				int size = removeValue(key, value);
+				keys.remove(key);
+				if (keys.isEmpty())
+					reverseIndex.remove(value, keys);
+				return size;
+			}
+		}
+	}
+
+	private int removeValue(K key, V value)
+	{
+		if (copyOnWrite)
+			return removeCopyOnWrite(key, value);
+
 		Set<V> valuesSet = map.get(key);
 		if (valuesSet == null)
 			return 0;
@@ -99,14 +215,156 @@ public class ConcurrentMultimap<K, V>
 		}
 	}
 
+	/**
+	 * removes a value from all the keys containing it. with a reverse index, only these keys are visited, otherwise all keys are
+	 */
 	public void removeFromAll(V value)
 	{
-		for (K key : map.keySet())
-			remove(key, value);
+		if (reverseIndex == null)
+		{
+			for (K key : map.keySet())
+				removeValue(key, value);
+			return;
+		}
+
+		while (true)
+		{
+			Set<K> keys = reverseIndex.get(value);
+			if (keys == null)
+				return;
+			synchronized (keys)
+			{
+				if (reverseIndex.get(value) != keys)
+					continue;
+				for (K key : keys)
+					removeValue(key, value);
+				keys.clear();
+				reverseIndex.remove(value, keys);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * returns (a copy of) the keys containing a value, or null if there are none. with a reverse index this is a simple lookup, otherwise
+	 * all keys are visited
+	 */
+	public Set<K> keysOf(V value)
+	{
+		if (reverseIndex == null)
+		{
+			Set<K> keys = new HashSet<K>();
+			for (K key : map.keySet())
+			{
+				Set<V> valuesSet = map.get(key);
+				if (valuesSet == null)
+					continue;
+				synchronized (valuesSet)
+				{
+					if (valuesSet.contains(value))
+						keys.add(key);
+				}
+			}
+			return keys.isEmpty() ? null : keys;
+		}
+
+		Set<K> keys = reverseIndex.get(value);
+		if (keys == null)
+			return null;
+		synchronized (keys)
+		{
+			return keys.isEmpty() ? null : new HashSet<K>(keys);
+		}
 	}
 
 	public void clear()
 	{
 		map.clear();
+		if (reverseIndex != null)
+			reverseIndex.clear();
+	}
+
+	// /////////////////////////////////////////////////////////////////////////////////////////
+
+	private Set<K> indexEntryOf(V value)
+	{
+		Set<K> keys = reverseIndex.get(value);
+		if (keys == null)
+		{
+			Set<K> emptySet = new HashSet<K>();
+			keys = reverseIndex.putIfAbsent(value, emptySet);
+			if (keys == null)
+				keys = emptySet;
+		}
+		return keys;
+	}
+
+	private int putCopyOnWrite(K key, V value, boolean autoCreateKey)
+	{
+		while (true)
+		{
+			Set<V> valuesSet = map.get(key);
+			if (valuesSet == null)
+			{
+				if (!autoCreateKey)
+					return 0;
+				if (map.putIfAbsent(key, copyOf(null, value, true)) == null)
+					return 1;
+			}
+			else
+			{
+				if (valuesSet.contains(value))
+					return valuesSet.size();
+				Set<V> updated = copyOf(valuesSet, value, true);
+				if (map.replace(key, valuesSet, updated))
+					return updated.size();
+			}
+		}
+	}
+
+	private int removeCopyOnWrite(K key, V value)
+	{
+		while (true)
+		{
+			Set<V> valuesSet = map.get(key);
+			if (valuesSet == null)
+				return 0;
+			if (!valuesSet.contains(value))
+				return valuesSet.size();
+			if (valuesSet.size() == 1)
+			{
+				if (map.remove(key, valuesSet))
+					return 0;
+			}
+			else
+			{
+				Set<V> updated = copyOf(valuesSet, value, false);
+				if (map.replace(key, valuesSet, updated))
+					return updated.size();
+			}
+		}
+	}
+
+	/**
+	 * returns an unmodifiable copy of a values-set (possibly null) with a value added to it or removed from it
+	 */
+	private Set<V> copyOf(Set<V> valuesSet, V value, boolean add)
+	{
+		if (sortValueSets)
+		{
+			TreeSet<V> copy = (valuesSet == null) ? new TreeSet<V>() : new TreeSet<V>(valuesSet);
+			if (add)
+				copy.add(value);
+			else
+				copy.remove(value);
+			return Collections.unmodifiableSortedSet(copy);
+		}
+
+		Set<V> copy = (valuesSet == null) ? new HashSet<V>() : new HashSet<V>(valuesSet);
+		if (add)
+			copy.add(value);
+		else
+			copy.remove(value);
+		return Collections.unmodifiableSet(copy);
 	}
 }
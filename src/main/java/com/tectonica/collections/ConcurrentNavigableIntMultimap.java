@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.collections;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class ConcurrentNavigableIntMultimap<K> extends ConcurrentIntMultimap<K>
+{
+	@Override
+	protected void initMap()
+	{
+		map = new ConcurrentSkipListMap<>();
+	}
+
+	private ConcurrentNavigableMap<K, int[]> getMap()
+	{
+		return (ConcurrentNavigableMap<K, int[]>) map;
+	}
+
+	public int[] getRange(K fromKey, K toKey)
+	{
+		return getRange(fromKey, true, toKey, false);
+	}
+
+	/**
+	 * returns the sorted union of the values included in a range of keys. the range can be bound at both ends, or only at one
+	 */
+	public int[] getRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
+	{
+		return unionOf(new ArrayList<>(subMapOfRange(fromKey, fromInclusive, toKey, toInclusive).values()));
+	}
+
+	private ConcurrentNavigableMap<K, int[]> subMapOfRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
+	{
+		if (fromKey == null && toKey == null)
+			throw new NullPointerException("both 'fromKey' and 'toKey' are null");
+
+		final ConcurrentNavigableMap<K, int[]> subMap;
+		if (fromKey != null && toKey != null)
+			subMap = getMap().subMap(fromKey, fromInclusive, toKey, toInclusive);
+		else if (fromKey != null)
+			subMap = getMap().tailMap(fromKey, fromInclusive);
+		else
+			// if (toKey != null)
+			subMap = getMap().headMap(toKey, toInclusive);
+
+		return subMap;
+	}
+}
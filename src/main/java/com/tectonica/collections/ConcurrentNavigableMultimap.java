@@ -18,7 +18,12 @@
 
 package com.tectonica.collections;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentNavigableMap;
@@ -36,6 +41,16 @@ public class ConcurrentNavigableMultimap<K, V> extends ConcurrentMultimap<K, V>
 		super(sortValueSets);
 	}
 
+	public ConcurrentNavigableMultimap(boolean sortValueSets, boolean copyOnWrite)
+	{
+		super(sortValueSets, copyOnWrite);
+	}
+
+	public ConcurrentNavigableMultimap(boolean sortValueSets, boolean copyOnWrite, boolean indexValues)
+	{
+		super(sortValueSets, copyOnWrite, indexValues);
+	}
+
 	@Override
 	protected void initMap()
 	{
@@ -78,6 +93,157 @@ public class ConcurrentNavigableMultimap<K, V> extends ConcurrentMultimap<K, V>
 		return result;
 	}
 
+	/**
+	 * returns a lazy iterable over the values in a range of keys, in the order of the keys. unlike {@link #getRange(Object, Object)}, the
+	 * values are not collected into one set, so a value contained by several keys in the range is visited once per key. the key range is
+	 * traversed as it changes (i.e. weakly consistent), while the values of each key are taken from a snapshot of that key alone: in
+	 * {@code copyOnWrite} mode it's the key's immutable set itself, otherwise a copy of it
+	 */
+	public Iterable<V> iterateRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
+	{
+		final ConcurrentNavigableMap<K, Set<V>> subMap = subMapOfRange(fromKey, fromInclusive, toKey, toInclusive);
+		return new Iterable<V>()
+		{
+			@Override
+			public Iterator<V> iterator()
+			{
+				return new RangeIterator(subMap.values().iterator());
+			}
+		};
+	}
+
+	/**
+	 * passes each of the values in a range of keys to the consumer, without collecting them first. as with
+	 * {@link #forEach(Object, Consumer)}, unless in {@code copyOnWrite} mode, each key is locked while its values are consumed
+	 */
+	public void forEachInRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, Consumer<? super V> consumer)
+	{
+		for (Set<V> valuesSet : subMapOfRange(fromKey, fromInclusive, toKey, toInclusive).values())
+		{
+			if (copyOnWrite)
+			{
+				for (V value : valuesSet)
+					consumer.accept(value);
+				continue;
+			}
+			synchronized (valuesSet)
+			{
+				for (V value : valuesSet)
+					consumer.accept(value);
+			}
+		}
+	}
+
+	/**
+	 * returns one page of the values in a range of keys, ordered as in {@link #iterateRange(Object, boolean, Object, boolean)}
+	 */
+	public List<V> getRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, int offset, int limit)
+	{
+		if (offset < 0)
+			throw new IllegalArgumentException("offset");
+		if (limit < 0)
+			throw new IllegalArgumentException("limit");
+
+		List<V> page = new ArrayList<V>(Math.min(limit, 1024));
+		Iterator<V> iter = iterateRange(fromKey, fromInclusive, toKey, toInclusive).iterator();
+		for (int skipped = 0; skipped < offset && iter.hasNext(); skipped++)
+			iter.next();
+		while (page.size() < limit && iter.hasNext())
+			page.add(iter.next());
+		return page;
+	}
+
+	/**
+	 * returns the number of values in a range of keys, counting a value once per key that contains it
+	 */
+	public long countRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
+	{
+		long count = 0L;
+		for (Set<V> valuesSet : subMapOfRange(fromKey, fromInclusive, toKey, toInclusive).values())
+			count += valuesSet.size();
+		return count;
+	}
+
+	/**
+	 * returns whether there's any value in a range of keys
+	 */
+	public boolean anyInRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
+	{
+		for (Set<V> valuesSet : subMapOfRange(fromKey, fromInclusive, toKey, toInclusive).values())
+			if (!valuesSet.isEmpty())
+				return true;
+		return false;
+	}
+
+	/**
+	 * removes all the keys in a range, along with their values
+	 */
+	public void removeRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
+	{
+		ConcurrentNavigableMap<K, Set<V>> subMap = subMapOfRange(fromKey, fromInclusive, toKey, toInclusive);
+		if (reverseIndex == null)
+		{
+			subMap.clear();
+			return;
+		}
+
+		// values are removed one by one, to keep the reverse index consistent
+		for (K key : subMap.keySet())
+		{
+			Set<V> valuesSet = get(key);
+			if (valuesSet != null)
+				for (V value : valuesSet)
+					remove(key, value);
+		}
+	}
+
+	private class RangeIterator implements Iterator<V>
+	{
+		private final Iterator<Set<V>> buckets;
+		private Iterator<V> values = Collections.<V> emptySet().iterator();
+
+		private RangeIterator(Iterator<Set<V>> buckets)
+		{
+			this.buckets = buckets;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (!values.hasNext())
+			{
+				if (!buckets.hasNext())
+					return false;
+				values = snapshotOf(buckets.next()).iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public V next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return values.next();
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		private Set<V> snapshotOf(Set<V> valuesSet)
+		{
+			if (copyOnWrite)
+				return valuesSet;
+			synchronized (valuesSet)
+			{
+				return sortValueSets ? new TreeSet<V>(valuesSet) : new HashSet<V>(valuesSet);
+			}
+		}
+	}
+
 	private ConcurrentNavigableMap<K, Set<V>> subMapOfRange(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
 	{
 		if (fromKey == null && toKey == null)
@@ -94,6 +260,4 @@ public class ConcurrentNavigableMultimap<K, V> extends ConcurrentMultimap<K, V>
 
 		return subMap;
 	}
-
-	// TODO: removeRange()
 }
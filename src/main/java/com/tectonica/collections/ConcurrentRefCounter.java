@@ -18,42 +18,279 @@
 
 package com.tectonica.collections;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Concurrent, thread-safe, counter of references per key. A key is added on its first {@code increase}, and removed once it's
+ * {@code decrease}d back to zero.
+ * <p>
+ * Each key is counted in a long-lived counter that is updated in-place, so that increasing and decreasing an existing key allocates nothing.
+ * For keys that are updated concurrently by many threads, the class may be constructed with several {@code stripes}, in which case each
+ * counter is split into independent cells (on separate cache lines), and every thread updates the cell it hashes to. A decrease is applied
+ * to a cell only if it leaves it positive, hence never brings the total to zero. Otherwise the counter is locked, all its cells are
+ * atomically sealed and summed, and only then the zero-crossing is decided. Removal of keys is therefore exact in both modes, but in striped
+ * mode the counts returned by {@code increase} and {@code decrease} are estimates (except for zero).
+ * 
+ * @author Zach Melamed
+ */
 public class ConcurrentRefCounter<K>
 {
-	private final ConcurrentMap<K, Integer> map = new ConcurrentHashMap<K, Integer>();
+	private final ConcurrentMap<K, Counter> map = new ConcurrentHashMap<K, Counter>();
+	private final int stripes;
+
+	public ConcurrentRefCounter()
+	{
+		this(1);
+	}
+
+	/**
+	 * @param stripes
+	 *            number of cells per key, rounded up to a power of 2. use 1 for a compact counter, or (roughly) the number of CPUs for keys
+	 *            under high contention
+	 */
+	public ConcurrentRefCounter(int stripes)
+	{
+		if (stripes < 1)
+			throw new IllegalArgumentException("stripes");
+		this.stripes = (stripes == 1) ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+	}
 
 	public int increase(K key)
 	{
 		while (true)
 		{
-			Integer count = map.get(key);
-			if (count == null)
+			Counter counter = map.get(key);
+			if (counter == null)
 			{
-				if (map.putIfAbsent(key, 1) == null)
+				if (map.putIfAbsent(key, new Counter(stripes)) == null)
 					return 1;
 			}
-			else if (map.replace(key, count, count + 1))
-				return count + 1;
+			else
+			{
+				int count = counter.increment();
+				if (count > 0)
+					return count;
+				map.remove(key, counter); // help removing a dead counter before retrying
+			}
 		}
 	}
 
+	/**
+	 * returns the new count of the key, 0 if it was removed now, or -1 if it doesn't exist
+	 */
 	public int decrease(K key)
 	{
 		while (true)
 		{
-			Integer count = map.get(key);
-			if (count == null)
+			Counter counter = map.get(key);
+			if (counter == null)
 				return -1;
-			if (count == 1)
+			int count = counter.decrement();
+			if (count >= 0)
+			{
+				if (count == 0)
+					map.remove(key, counter);
+				return count;
+			}
+			map.remove(key, counter); // help removing a dead counter before retrying
+		}
+	}
+
+	public void increaseAll(Collection<K> keys)
+	{
+		for (K key : keys)
+			increase(key);
+	}
+
+	/**
+	 * decreases all the given keys, and returns the number of keys removed as a result
+	 */
+	public int decreaseAll(Collection<K> keys)
+	{
+		int removed = 0;
+		for (K key : keys)
+			if (decrease(key) == 0)
+				removed++;
+		return removed;
+	}
+
+	/**
+	 * returns the current count of a key, or 0 if it doesn't exist
+	 */
+	public int count(K key)
+	{
+		Counter counter = map.get(key);
+		return (counter == null) ? 0 : counter.exactCount();
+	}
+
+	/**
+	 * returns a copy of all keys and their counts. each count is exact at the moment its key was visited, but, as with any iteration over a
+	 * concurrent map, keys are not all visited at the same moment
+	 */
+	public Map<K, Integer> snapshot()
+	{
+		Map<K, Integer> result = new HashMap<K, Integer>();
+		for (Entry<K, Counter> entry : map.entrySet())
+		{
+			int count = entry.getValue().exactCount();
+			if (count > 0)
+				result.put(entry.getKey(), count);
+		}
+		return result;
+	}
+
+	public int size()
+	{
+		return map.size();
+	}
+
+	// /////////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * value of a cell that is being summed by {@link Counter#seal()}. threads that encounter it wait for the cell to be reopened, unless the
+	 * counter is dead
+	 */
+	private static final long SEALED = Long.MIN_VALUE;
+
+	/**
+	 * distance between cells in the array, so that each of them occupies its own cache line
+	 */
+	private static final int PADDING = 8;
+
+	private static class Counter
+	{
+		private final AtomicLongArray cells;
+		private final int mask;
+		private final int spacing;
+		private volatile boolean dead;
+
+		private Counter(int stripes)
+		{
+			spacing = (stripes == 1) ? 1 : PADDING;
+			mask = stripes - 1;
+			cells = new AtomicLongArray(stripes * spacing);
+			cells.set(0, 1L);
+		}
+
+		private int probe()
+		{
+			long id = Thread.currentThread().getId();
+			return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+		}
+
+		/**
+		 * returns the count after incrementing, or -1 if the counter is dead
+		 */
+		private int increment()
+		{
+			int stripe = probe();
+			while (true)
 			{
-				if (map.remove(key, 1))
+				int i = stripe * spacing;
+				long value = cells.get(i);
+				if (value == SEALED)
+				{
+					if (dead)
+						return -1;
+					Thread.yield(); // the cell is being summed, wait for it to reopen
+				}
+				else if (cells.compareAndSet(i, value, value + 1L))
+					return (mask == 0) ? (int) (value + 1L) : estimate();
+				else
+					stripe = (stripe + 1) & mask; // contention, try another cell
+			}
+		}
+
+		/**
+		 * returns the count after decrementing, 0 if the counter died as a result, or -1 if it was already dead
+		 */
+		private int decrement()
+		{
+			// fast path: decrement a cell that remains positive
+			int stripe = probe();
+			for (int attempt = 0; attempt <= mask; attempt++, stripe = (stripe + 1) & mask)
+			{
+				int i = stripe * spacing;
+				long value = cells.get(i);
+				if (value >= 2L && cells.compareAndSet(i, value, value - 1L))
+					return (mask == 0) ? (int) (value - 1L) : estimate();
+				if (value == SEALED)
+					break;
+			}
+
+			// slow path: this might be the last reference
+			synchronized (this)
+			{
+				if (dead)
+					return -1;
+				long total = seal() - 1L;
+				if (total == 0L)
+					dead = true; // cells remain sealed forever
+				else
+					reopen(total);
+				return (int) total;
+			}
+		}
+
+		private int exactCount()
+		{
+			synchronized (this)
+			{
+				if (dead)
 					return 0;
+				long total = seal();
+				reopen(total);
+				return (int) total;
+			}
+		}
+
+		/**
+		 * atomically replaces each cell with {@link #SEALED}, returning the sum of the values they had. must be called under lock
+		 */
+		private long seal()
+		{
+			long total = 0L;
+			for (int i = 0; i < cells.length(); i += spacing)
+			{
+				while (true)
+				{
+					long value = cells.get(i);
+					if (cells.compareAndSet(i, value, SEALED))
+					{
+						total += value;
+						break;
+					}
+				}
+			}
+			return total;
+		}
+
+		/**
+		 * moves the entire count to the first cell and reopens the others. must be called under lock, after {@link #seal()}
+		 */
+		private void reopen(long total)
+		{
+			for (int i = spacing; i < cells.length(); i += spacing)
+				cells.set(i, 0L);
+			cells.set(0, total);
+		}
+
+		private int estimate()
+		{
+			long total = 0L;
+			for (int i = 0; i < cells.length(); i += spacing)
+			{
+				long value = cells.get(i);
+				if (value != SEALED)
+					total += value;
 			}
-			else if (map.replace(key, count, count - 1))
-				return count - 1;
+			return (int) Math.max(1L, total);
 		}
 	}
-}
\ No newline at end of file
+}
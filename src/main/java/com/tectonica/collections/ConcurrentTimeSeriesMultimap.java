@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.collections;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A multimap keyed by timestamps (or any other monotonic {@code long}), intended for indexing recent events. Keys are grouped into
+ * fixed-width time buckets, each being a {@link ConcurrentNavigableMultimap} of its own, so that old data can be dropped a bucket at a time
+ * with {@link #expireBefore(long)}, rather than key by key. Expiry can also be scheduled to run periodically with
+ * {@link #scheduleExpiry(ScheduledExecutorService, long, long, TimeUnit)}.
+ * <p>
+ * Values are kept in {@code copyOnWrite} mode by default, so that range scans over the live window take no locks.
+ * <p>
+ * Once expired, a time is considered in the past: values put in it are discarded, and {@code put} returns 0.
+ * 
+ * @author Zach Melamed
+ */
+public class ConcurrentTimeSeriesMultimap<V>
+{
+	private final ConcurrentNavigableMap<Long, ConcurrentNavigableMultimap<Long, V>> buckets = new ConcurrentSkipListMap<>();
+	private final long bucketWidth;
+	private final boolean sortValueSets;
+	private final boolean copyOnWrite;
+	private final AtomicLong watermark = new AtomicLong(Long.MIN_VALUE);
+
+	public ConcurrentTimeSeriesMultimap(long bucketWidth)
+	{
+		this(bucketWidth, false, true);
+	}
+
+	public ConcurrentTimeSeriesMultimap(long bucketWidth, boolean sortValueSets, boolean copyOnWrite)
+	{
+		if (bucketWidth <= 0L)
+			throw new IllegalArgumentException("bucketWidth");
+		this.bucketWidth = bucketWidth;
+		this.sortValueSets = sortValueSets;
+		this.copyOnWrite = copyOnWrite;
+	}
+
+	private long bucketOf(long time)
+	{
+		long mod = time % bucketWidth;
+		if (mod < 0L)
+			mod += bucketWidth; // i.e. floor, also for negative times
+		if (time < Long.MIN_VALUE + mod)
+			return Long.MIN_VALUE; // the (partial) first bucket
+		return time - mod;
+	}
+
+	public int put(long time, V value)
+	{
+		if (time < watermark.get())
+			return 0;
+		Long bucketKey = bucketOf(time);
+		ConcurrentNavigableMultimap<Long, V> bucket = buckets.get(bucketKey);
+		if (bucket == null)
+		{
+			ConcurrentNavigableMultimap<Long, V> emptyBucket = new ConcurrentNavigableMultimap<>(sortValueSets, copyOnWrite);
+			bucket = buckets.putIfAbsent(bucketKey, emptyBucket);
+			if (bucket == null)
+				bucket = emptyBucket;
+		}
+		int size = bucket.put(time, value);
+		long current = watermark.get();
+		if (time < current)
+		{
+			// expireBefore() raced with us, and may have trimmed (or dropped) the bucket before the value was added, so we undo
+			bucket.remove(time, value);
+			if (bucketKey < bucketOf(current) && !bucket.anyInRange(null, false, null, false))
+				buckets.remove(bucketKey, bucket); // entirely expired, so no valid put can be targeting it
+			return 0;
+		}
+		return size;
+	}
+
+	public Set<V> get(long time)
+	{
+		ConcurrentNavigableMultimap<Long, V> bucket = buckets.get(bucketOf(time));
+		return (bucket == null) ? null : bucket.get(time);
+	}
+
+	public int remove(long time, V value)
+	{
+		ConcurrentNavigableMultimap<Long, V> bucket = buckets.get(bucketOf(time));
+		return (bucket == null) ? 0 : bucket.remove(time, value);
+	}
+
+	/**
+	 * returns all the values in a range of times, collected into a single set (i.e. without duplicates)
+	 */
+	public Set<V> getRange(long fromTime, boolean fromInclusive, long toTime, boolean toInclusive)
+	{
+		Set<V> result = sortValueSets ? new TreeSet<V>() : new HashSet<V>();
+		for (V value : iterateRange(fromTime, fromInclusive, toTime, toInclusive))
+			result.add(value);
+		return result;
+	}
+
+	/**
+	 * returns a lazy iterable over the values in a range of times, in chronological order. see
+	 * {@link ConcurrentNavigableMultimap#iterateRange(Object, boolean, Object, boolean)}
+	 */
+	public Iterable<V> iterateRange(final long fromTime, final boolean fromInclusive, final long toTime, final boolean toInclusive)
+	{
+		final ConcurrentNavigableMap<Long, ConcurrentNavigableMultimap<Long, V>> subMap = bucketsOfRange(fromTime, toTime);
+		return new Iterable<V>()
+		{
+			@Override
+			public Iterator<V> iterator()
+			{
+				final Iterator<ConcurrentNavigableMultimap<Long, V>> bucketsIter = subMap.values().iterator();
+				return new Iterator<V>()
+				{
+					private Iterator<V> values = Collections.<V> emptySet().iterator();
+
+					@Override
+					public boolean hasNext()
+					{
+						while (!values.hasNext())
+						{
+							if (!bucketsIter.hasNext())
+								return false;
+							values = bucketsIter.next().iterateRange(fromTime, fromInclusive, toTime, toInclusive).iterator();
+						}
+						return true;
+					}
+
+					@Override
+					public V next()
+					{
+						if (!hasNext())
+							throw new NoSuchElementException();
+						return values.next();
+					}
+
+					@Override
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * returns the number of values in a range of times, counting a value once per time that contains it
+	 */
+	public long countRange(long fromTime, boolean fromInclusive, long toTime, boolean toInclusive)
+	{
+		long count = 0L;
+		for (ConcurrentNavigableMultimap<Long, V> bucket : bucketsOfRange(fromTime, toTime).values())
+			count += bucket.countRange(fromTime, fromInclusive, toTime, toInclusive);
+		return count;
+	}
+
+	private ConcurrentNavigableMap<Long, ConcurrentNavigableMultimap<Long, V>> bucketsOfRange(long fromTime, long toTime)
+	{
+		if (fromTime > toTime)
+			throw new IllegalArgumentException("fromTime > toTime");
+		return buckets.subMap(bucketOf(fromTime), true, bucketOf(toTime), true);
+	}
+
+	/**
+	 * discards all the values whose time is older than the watermark. buckets entirely before the watermark are dropped as a whole, and only
+	 * the bucket containing the watermark is trimmed key by key. returns the number of buckets dropped
+	 */
+	public int expireBefore(long time)
+	{
+		long current;
+		while ((current = watermark.get()) < time)
+			if (watermark.compareAndSet(current, time))
+				break;
+
+		long boundary = bucketOf(time);
+		ConcurrentNavigableMap<Long, ConcurrentNavigableMultimap<Long, V>> expired = buckets.headMap(boundary, false);
+		int dropped = 0;
+		while (expired.pollFirstEntry() != null)
+			dropped++;
+		ConcurrentNavigableMultimap<Long, V> partial = buckets.get(boundary);
+		if (partial != null)
+			partial.removeRange(null, false, time, false);
+		return dropped;
+	}
+
+	/**
+	 * schedules a periodic call to {@link #expireBefore(long)}, discarding values older than {@code retention} (in milliseconds) relative
+	 * to the current time. cancel the returned future to stop expiring
+	 */
+	public ScheduledFuture<?> scheduleExpiry(ScheduledExecutorService executor, final long retention, long period, TimeUnit unit)
+	{
+		return executor.scheduleAtFixedRate(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				expireBefore(System.currentTimeMillis() - retention);
+			}
+		}, period, period, unit);
+	}
+
+	public int bucketCount()
+	{
+		return buckets.size();
+	}
+
+	public void clear()
+	{
+		buckets.clear();
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.collections;
+
+import java.util.Arrays;
+
+/**
+ * A {@link ConcurrentRefCounter} specialized for {@code long} keys, which neither boxes keys nor counts, and allocates nothing per operation.
+ * <p>
+ * Keys are stored in an open-addressing (linear probing) hash table of primitive arrays, split into independently locked segments, so that
+ * threads updating keys in different segments don't contend. An empty slot is recognized by a count of zero, and removal is done by
+ * shifting back the following entries of the probe sequence, so no tombstones are left behind. Each segment grows on its own when it's 3/4
+ * full.
+ * 
+ * @author Zach Melamed
+ */
+public class LongRefCounter
+{
+	private final Segment[] segments;
+	private final int segmentShift;
+
+	public LongRefCounter()
+	{
+		this(16, 64);
+	}
+
+	/**
+	 * @param concurrencyLevel
+	 *            number of independently locked segments, rounded up to a power of 2
+	 * @param initialCapacity
+	 *            expected total number of keys
+	 */
+	public LongRefCounter(int concurrencyLevel, int initialCapacity)
+	{
+		if (concurrencyLevel < 1)
+			throw new IllegalArgumentException("concurrencyLevel");
+		int segmentCount = (concurrencyLevel == 1) ? 1 : Integer.highestOneBit(concurrencyLevel - 1) << 1;
+		segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+		segments = new Segment[segmentCount];
+		int segmentCapacity = Math.max(2, initialCapacity / segmentCount);
+		for (int i = 0; i < segmentCount; i++)
+			segments[i] = new Segment(segmentCapacity);
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Segment segmentOf(int hash)
+	{
+		return segments[(segmentShift == 32) ? 0 : hash >>> segmentShift];
+	}
+
+	public int increase(long key)
+	{
+		int hash = hash(key);
+		return segmentOf(hash).increase(key, hash);
+	}
+
+	/**
+	 * returns the new count of the key, 0 if it was removed now, or -1 if it doesn't exist
+	 */
+	public int decrease(long key)
+	{
+		int hash = hash(key);
+		return segmentOf(hash).decrease(key, hash);
+	}
+
+	/**
+	 * returns the current count of a key, or 0 if it doesn't exist
+	 */
+	public int count(long key)
+	{
+		int hash = hash(key);
+		return segmentOf(hash).count(key, hash);
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : segments)
+			size += segment.size();
+		return size;
+	}
+
+	public void clear()
+	{
+		for (Segment segment : segments)
+			segment.clear();
+	}
+
+	// /////////////////////////////////////////////////////////////////////////////////////////
+
+	private static class Segment
+	{
+		private long[] keys;
+		private int[] counts; // 0 marks an empty slot
+		private int mask;
+		private int size;
+		private int threshold;
+
+		private Segment(int capacity)
+		{
+			allocate(Integer.highestOneBit(Math.max(2, capacity * 4 / 3) - 1) << 1);
+		}
+
+		private void allocate(int tableSize)
+		{
+			keys = new long[tableSize];
+			counts = new int[tableSize];
+			mask = tableSize - 1;
+			threshold = tableSize * 3 / 4;
+		}
+
+		private synchronized int increase(long key, int hash)
+		{
+			int i = hash & mask;
+			while (counts[i] != 0)
+			{
+				if (keys[i] == key)
+					return ++counts[i];
+				i = (i + 1) & mask;
+			}
+			if (size >= threshold)
+			{
+				rehash();
+				return increase(key, hash);
+			}
+			keys[i] = key;
+			counts[i] = 1;
+			size++;
+			return 1;
+		}
+
+		private synchronized int decrease(long key, int hash)
+		{
+			int i = hash & mask;
+			while (counts[i] != 0)
+			{
+				if (keys[i] == key)
+				{
+					int count = --counts[i];
+					if (count == 0)
+						removeAt(i);
+					return count;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		private synchronized int count(long key, int hash)
+		{
+			int i = hash & mask;
+			while (counts[i] != 0)
+			{
+				if (keys[i] == key)
+					return counts[i];
+				i = (i + 1) & mask;
+			}
+			return 0;
+		}
+
+		private synchronized int size()
+		{
+			return size;
+		}
+
+		private synchronized void clear()
+		{
+			Arrays.fill(counts, 0);
+			size = 0;
+		}
+
+		/**
+		 * empties slot {@code i}, moving back entries that would otherwise become unreachable from their home slot
+		 */
+		private void removeAt(int i)
+		{
+			size--;
+			int gap = i;
+			for (int j = (i + 1) & mask; counts[j] != 0; j = (j + 1) & mask)
+			{
+				int home = hash(keys[j]) & mask;
+				// move the entry into the gap if its home slot is not within (gap, j] (cyclically)
+				if (((j - home) & mask) >= ((j - gap) & mask))
+				{
+					keys[gap] = keys[j];
+					counts[gap] = counts[j];
+					gap = j;
+				}
+			}
+			counts[gap] = 0;
+		}
+
+		private void rehash()
+		{
+			long[] oldKeys = keys;
+			int[] oldCounts = counts;
+			allocate(keys.length << 1);
+			for (int j = 0; j < oldKeys.length; j++)
+			{
+				if (oldCounts[j] == 0)
+					continue;
+				int i = hash(oldKeys[j]) & mask;
+				while (counts[i] != 0)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				counts[i] = oldCounts[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tectonica.thirdparty;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A bounded pool of {@link Kryo} instances, configured by {@link KryoUtil}'s configurators. Since creating and configuring a Kryo is
+ * relatively expensive, and since a Kryo is not thread-safe, threads should borrow an instance for the duration of an operation and then
+ * return it, as in:
+ * 
+ * <pre>
+ * Kryo kryo = pool.borrow();
+ * try
+ * {
+ * 	...
+ * }
+ * finally
+ * {
+ * 	pool.release(kryo);
+ * }
+ * </pre>
+ * 
+ * Borrowing never blocks: when the pool is empty a new instance is created. The bound applies to the number of idle instances kept for
+ * reuse, so that the memory held by the pool doesn't depend on the number of threads that ever used it (unlike a {@code ThreadLocal}).
+ * Neither borrowing nor releasing takes a lock; the idle instances are kept in a lock-free queue whose size is bounded by a separate
+ * counter, which may momentarily lag behind the queue itself but never lets it grow beyond {@code maxIdle}.
+ * 
+ * @author Zach Melamed
+ */
+public class KryoPool
+{
+	private static final int OUTPUT_BUFFER_SIZE = 1024;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+	private final int maxIdle;
+	private final Queue<PooledKryo> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * A Kryo paired with a reusable output buffer
+	 */
+	private static class PooledKryo extends Kryo
+	{
+		private final Output output = new Output(OUTPUT_BUFFER_SIZE, -1);
+	}
+
+	public KryoPool(int maxIdle)
+	{
+		if (maxIdle <= 0)
+			throw new IllegalArgumentException("maxIdle must be positive");
+		this.maxIdle = maxIdle;
+	}
+
+	public Kryo borrow()
+	{
+		PooledKryo kryo = idle.poll();
+		if (kryo != null)
+			idleCount.decrementAndGet();
+		else
+		{
+			kryo = new PooledKryo();
+			KryoUtil.configure(kryo);
+		}
+		return kryo;
+	}
+
+	/**
+	 * returns a Kryo previously borrowed from this pool. If the pool is already full, the instance is discarded.
+	 */
+	public void release(Kryo kryo)
+	{
+		if (!(kryo instanceof PooledKryo))
+			throw new IllegalArgumentException("not a pooled instance");
+		PooledKryo pooled = (PooledKryo) kryo;
+		if (pooled.output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE)
+			pooled.output.setBuffer(new byte[OUTPUT_BUFFER_SIZE], -1); // don't hold on to buffers grown by an exceptionally large object
+		while (true)
+		{
+			int count = idleCount.get();
+			if (count >= maxIdle)
+				return; // pool is full, let the instance be garbage-collected
+			if (idleCount.compareAndSet(count, count + 1))
+				break;
+		}
+		idle.offer(pooled);
+	}
+
+	/**
+	 * returns the number of idle instances currently in the pool
+	 */
+	public int idleSize()
+	{
+		return idleCount.get();
+	}
+
+	/**
+	 * returns the (cleared) output buffer that belongs to a borrowed Kryo
+	 */
+	static Output outputOf(Kryo kryo)
+	{
+		Output output = ((PooledKryo) kryo).output;
+		output.clear();
+		return output;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tectonica.thirdparty;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+
+/**
+ * Reads a sequence of records written by {@link KryoWriter}, all of the same type, from a stream (or a file). Records are read lazily,
+ * one at a time, either with {@link #read()} or by iterating over the reader, so arbitrarily large streams can be processed in constant
+ * memory:
+ * 
+ * <pre>
+ * try (KryoReader&lt;Event&gt; reader = new KryoReader&lt;&gt;(file, Event.class))
+ * {
+ * 	for (Event event : reader)
+ * 		...
+ * }
+ * </pre>
+ * 
+ * A reader is not thread-safe. I/O errors, as well as streams that are truncated or corrupt, are reported as (unchecked)
+ * {@link KryoException}s.
+ * 
+ * @author Zach Melamed
+ */
+public class KryoReader<V> implements Closeable, Iterable<V>
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Kryo kryo;
+	private final Input input;
+	private final Class<V> clz;
+	private long count = 0L;
+	private boolean iterated = false;
+	private boolean closed = false;
+
+	public KryoReader(InputStream is, Class<V> clz)
+	{
+		this.input = new Input(is, BUFFER_SIZE);
+		this.clz = clz;
+		this.kryo = KryoUtil.getPool().borrow();
+	}
+
+	public KryoReader(File file, Class<V> clz) throws FileNotFoundException
+	{
+		this(new FileInputStream(file), clz);
+	}
+
+	/**
+	 * returns the next record, or null if the end of the stream was reached
+	 */
+	public V read()
+	{
+		if (!nextRecord())
+			return null;
+		int length = input.readVarInt(true);
+		long start = input.total();
+		V obj = kryo.readObject(input, clz);
+		if (input.total() - start != length)
+			throw new KryoException("corrupt record #" + count + ": expected " + length + " bytes, read " + (input.total() - start));
+		count++;
+		return obj;
+	}
+
+	/**
+	 * skips the next record without deserializing it, returning false if the end of the stream was reached
+	 */
+	public boolean skip()
+	{
+		if (!nextRecord())
+			return false;
+		int length = input.readVarInt(true);
+		input.skip((long) length);
+		count++;
+		return true;
+	}
+
+	private boolean nextRecord()
+	{
+		if (closed)
+			throw new IllegalStateException("reader is closed");
+		return !input.eof();
+	}
+
+	/**
+	 * returns the number of records read (or skipped) so far
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns an iterator over the remaining records, which reads them lazily. Can only be called once per reader.
+	 */
+	@Override
+	public Iterator<V> iterator()
+	{
+		if (iterated)
+			throw new IllegalStateException("a reader can only be iterated once");
+		iterated = true;
+		return new Iterator<V>()
+		{
+			private V next = null;
+
+			@Override
+			public boolean hasNext()
+			{
+				if (next == null)
+					next = read();
+				return next != null;
+			}
+
+			@Override
+			public V next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+				V obj = next;
+				next = null;
+				return obj;
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * closes the underlying stream
+	 */
+	@Override
+	public void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		try
+		{
+			input.close();
+		}
+		finally
+		{
+			KryoUtil.getPool().release(kryo);
+		}
+	}
+}
@@ -18,7 +18,17 @@
 
 package com.tectonica.thirdparty;
 
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
@@ -36,19 +46,13 @@ import com.esotericsoftware.kryo.io.Output;
  */
 public class KryoUtil
 {
-	private static class KryoBox
-	{
-		final Kryo kryo;
-		final Output output;
-
-		public KryoBox()
-		{
-			kryo = new Kryo();
-			configure(kryo);
-			output = new Output(1024, -1);
-		}
-	}
-
+	/**
+	 * A service for customizing the configuration of the Kryo instances used by this class, most importantly for registering the classes
+	 * that are serialized (so that their names are not written into every payload). Implementations are discovered with
+	 * {@link ServiceLoader}, i.e. by listing them in a {@code META-INF/services/com.tectonica.thirdparty.KryoUtil$Configurator} resource,
+	 * and are applied in the order they're found, after the default configuration. Note that all the parties exchanging serialized data
+	 * must register the same classes, with the same IDs.
+	 */
 	public static interface Configurator
 	{
 		void configure(Kryo kryo);
@@ -64,42 +68,150 @@ public class KryoUtil
 		}
 	};
 
-	private static void configure(Kryo kryo)
+	private static final List<Configurator> configurators = loadConfigurators();
+
+	private static List<Configurator> loadConfigurators()
+	{
+		List<Configurator> list = new ArrayList<>();
+		for (Configurator configurator : ServiceLoader.load(Configurator.class))
+			list.add(configurator);
+		return Collections.unmodifiableList(list);
+	}
+
+	static void configure(Kryo kryo)
 	{
-		// TODO: allow an SPI for custom configuration
 		defaultConfigurator.configure(kryo);
+		for (Configurator configurator : configurators)
+			configurator.configure(kryo);
 	}
 
-	private static ThreadLocal<KryoBox> kryos = new ThreadLocal<KryoBox>()
+	private static final KryoPool pool = new KryoPool(2 * Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * returns the pool of configured Kryo instances used by this class, for serialization tasks not covered by its convenience methods
+	 */
+	public static KryoPool getPool()
 	{
-		protected KryoBox initialValue()
-		{
-			return new KryoBox();
-		}
-	};
+		return pool;
+	}
 
 	public static byte[] objToBytes(Object obj)
 	{
 		if (obj == null)
 			return null;
-		KryoBox kryoBox = kryos.get();
-		kryoBox.output.clear();
-		kryoBox.kryo.writeObject(kryoBox.output, obj);
-		return kryoBox.output.toBytes();
+		Kryo kryo = pool.borrow();
+		try
+		{
+			Output output = KryoPool.outputOf(kryo);
+			kryo.writeObject(output, obj);
+			return output.toBytes();
+		}
+		finally
+		{
+			pool.release(kryo);
+		}
 	}
 
 	public static <V> V bytesToObj(byte[] bytes, Class<V> clz)
 	{
 		if (bytes == null)
 			return null;
-		return kryos.get().kryo.readObject(new Input(bytes), clz);
+		Kryo kryo = pool.borrow();
+		try
+		{
+			return kryo.readObject(new Input(bytes), clz);
+		}
+		finally
+		{
+			pool.release(kryo);
+		}
+	}
+
+	/**
+	 * Serializes an object directly into a stream, with no intermediate byte array. The stream is flushed, but not closed. The data can
+	 * be read back with {@link #bytesToObj(byte[], Class)} or {@link #bufferToObj(ByteBuffer, Class)}.
+	 * 
+	 * @throws KryoException
+	 *             if an I/O error occurs
+	 */
+	public static void objToStream(Object obj, OutputStream os)
+	{
+		Kryo kryo = pool.borrow();
+		Output output = KryoPool.outputOf(kryo);
+		try
+		{
+			output.setOutputStream(os);
+			kryo.writeObject(output, obj);
+			output.flush();
+		}
+		finally
+		{
+			output.setOutputStream(null);
+			pool.release(kryo);
+		}
+	}
+
+	/**
+	 * Serializes an object directly into a buffer (possibly a direct one), starting at its current position, and advances the position
+	 * past the written data. The data can be read back with {@link #bytesToObj(byte[], Class)} or {@link #bufferToObj(ByteBuffer, Class)}.
+	 * 
+	 * @return the number of bytes written
+	 * @throws KryoException
+	 *             if the data doesn't fit in the buffer's remaining space, in which case the buffer's position is unchanged
+	 */
+	public static int objToBuffer(Object obj, ByteBuffer buffer)
+	{
+		ByteBuffer target = buffer.slice(); // shares the content, but not the position and limit
+		ByteBufferOutput output = new ByteBufferOutput(target, target.capacity());
+		Kryo kryo = pool.borrow();
+		try
+		{
+			kryo.writeObject(output, obj);
+			output.flush();
+		}
+		finally
+		{
+			pool.release(kryo);
+		}
+		int length = output.position();
+		buffer.position(buffer.position() + length);
+		return length;
+	}
+
+	/**
+	 * Deserializes an object directly from a buffer (possibly a direct one), starting at its current position, and advances the position
+	 * past the data that was read.
+	 */
+	public static <V> V bufferToObj(ByteBuffer buffer, Class<V> clz)
+	{
+		ByteBufferInput input = new ByteBufferInput(buffer.slice());
+		Kryo kryo = pool.borrow();
+		V obj;
+		try
+		{
+			obj = kryo.readObject(input, clz);
+		}
+		finally
+		{
+			pool.release(kryo);
+		}
+		buffer.position(buffer.position() + input.position());
+		return obj;
 	}
 
 	public static <V> V copyOf(V obj)
 	{
 		if (obj == null)
 			return null;
-		return kryos.get().kryo.copy(obj);
+		Kryo kryo = pool.borrow();
+		try
+		{
+			return kryo.copy(obj);
+		}
+		finally
+		{
+			pool.release(kryo);
+		}
 	}
 
 	// ////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tectonica.thirdparty;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.OutputStream;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Writes a sequence of objects to a stream (or a file) as length-framed records, to be read back with {@link KryoReader}. Each record
+ * consists of the length of the serialized object (as a variable-length int) followed by the object itself, serialized with
+ * {@link KryoUtil}'s configuration. Unlike repeated calls to {@link KryoUtil#objToBytes(Object)}, the writer holds on to a single Kryo
+ * instance and buffer for its entire lifetime, and doesn't allocate per record (though each record is still copied once, from that buffer
+ * to the stream's, see {@link #write(Object)}).
+ * <p>
+ * A writer is not thread-safe. I/O errors are reported as (unchecked) {@link KryoException}s.
+ * 
+ * @author Zach Melamed
+ */
+public class KryoWriter implements Closeable, Flushable
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Kryo kryo;
+	private final Output output;
+	private long count = 0L;
+	private boolean closed = false;
+
+	public KryoWriter(OutputStream os)
+	{
+		output = new Output(os, BUFFER_SIZE);
+		kryo = KryoUtil.getPool().borrow();
+	}
+
+	public KryoWriter(File file) throws FileNotFoundException
+	{
+		this(new FileOutputStream(file));
+	}
+
+	/**
+	 * creates a writer that appends records to an existing file (or creates it if it doesn't exist)
+	 */
+	public static KryoWriter append(File file) throws FileNotFoundException
+	{
+		return new KryoWriter(new FileOutputStream(file, true));
+	}
+
+	public void write(Object obj)
+	{
+		if (closed)
+			throw new IllegalStateException("writer is closed");
+		if (obj == null)
+			throw new IllegalArgumentException("null records are not supported");
+		// the record is serialized into the pooled buffer, and then copied to the stream, because its varint length has to be written before
+		// it. the copy allocates nothing, and avoiding it would take either a fixed-width length patched in afterwards, or serializing twice
+		Output record = KryoPool.outputOf(kryo);
+		kryo.writeObject(record, obj);
+		output.writeVarInt(record.position(), true);
+		output.write(record.getBuffer(), 0, record.position());
+		count++;
+	}
+
+	public void writeAll(Iterable<?> objs)
+	{
+		for (Object obj : objs)
+			write(obj);
+	}
+
+	/**
+	 * returns the number of records written so far
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	@Override
+	public void flush()
+	{
+		output.flush();
+	}
+
+	/**
+	 * flushes the remaining records and closes the underlying stream
+	 */
+	@Override
+	public void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		try
+		{
+			output.close();
+		}
+		finally
+		{
+			KryoUtil.getPool().release(kryo);
+		}
+	}
+}
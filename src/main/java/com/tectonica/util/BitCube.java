@@ -18,7 +18,16 @@
 
 package com.tectonica.util;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * A memory-efficient data structure for storing a 3-dimensional bit array. The data is not compacted and the array is not assumed to be
@@ -28,10 +37,13 @@ import java.util.Arrays;
  * 
  * @author Zach Melamed
  */
-public class BitCube
+public class BitCube implements BitGrid
 {
 	private final static int ADDRESS_BITS_PER_WORD = 6;
 	private final static int BITS_PER_WORD = 1 << ADDRESS_BITS_PER_WORD;
+	private final static int PARALLEL_WORDS_PER_TASK = 1 << 14;
+	private final static int DIRTY_BLOCK_SHIFT = 3; // i.e. each dirty bit covers 8 words, a single cache line
+	private final static int MAX_DELTA_LENGTH = Integer.MAX_VALUE - 15; // the largest array that's safe on all VMs, in whole blocks
 
 	private final long[] words;
 
@@ -41,6 +53,8 @@ public class BitCube
 	private final int zWordCount;
 	private final int yWordCount;
 
+	private long[] dirty; // a bit per block of words modified since the last drain, or null when not tracking
+
 	public BitCube(int xAxisSize, int yAxisSize, int zAxisSize)
 	{
 		this.xAxisSize = xAxisSize;
@@ -61,21 +75,25 @@ public class BitCube
 		return (x * yWordCount) + (y * zWordCount) + wordLocalIndex(z);
 	}
 
+	@Override
 	public long getBufferSize() // in bytes
 	{
 		return (1L * words.length) << (ADDRESS_BITS_PER_WORD - 3);
 	}
 
+	@Override
 	public int getXAxisSize()
 	{
 		return xAxisSize;
 	}
 
+	@Override
 	public int getYAxisSize()
 	{
 		return yAxisSize;
 	}
 
+	@Override
 	public int getZAxisSize()
 	{
 		return zAxisSize;
@@ -88,6 +106,7 @@ public class BitCube
 		assert (z >= 0 && z < zAxisSize);
 	}
 
+	@Override
 	public boolean get(int x, int y, int z)
 	{
 		checkDimensions(x, y, z);
@@ -95,6 +114,7 @@ public class BitCube
 		return (words[i] & (1L << z)) != 0L;
 	}
 
+	@Override
 	public void set(int x, int y, int z, boolean value)
 	{
 		checkDimensions(x, y, z);
@@ -104,8 +124,10 @@ public class BitCube
 			words[i] |= mask;
 		else
 			words[i] &= ~mask;
+		markDirty(i);
 	}
 
+	@Override
 	public boolean getAndSet(int x, int y, int z, boolean value)
 	{
 		checkDimensions(x, y, z);
@@ -116,9 +138,11 @@ public class BitCube
 			words[i] |= mask;
 		else
 			words[i] &= ~mask;
+		markDirty(i);
 		return wasSet;
 	}
 
+	@Override
 	public void setAxisX(int y, int z, boolean value)
 	{
 		checkDimensions(0, y, z);
@@ -129,9 +153,11 @@ public class BitCube
 				words[i] |= mask;
 			else
 				words[i] &= ~mask;
+			markDirty(i);
 		}
 	}
 
+	@Override
 	public void setAxisY(int x, int z, boolean value)
 	{
 		checkDimensions(x, 0, z);
@@ -142,9 +168,11 @@ public class BitCube
 				words[i] |= mask;
 			else
 				words[i] &= ~mask;
+			markDirty(i);
 		}
 	}
 
+	@Override
 	public void setAxisZ(int x, int y, boolean value)
 	{
 		checkDimensions(x, y, 0);
@@ -153,8 +181,10 @@ public class BitCube
 		if (zWordCount > 1)
 			Arrays.fill(words, firstWordIndex, lastWordIndex, value ? ~0L : 0L);
 		words[lastWordIndex] = value ? (~0L >>> -zAxisSize) : 0L;
+		markDirty(firstWordIndex, lastWordIndex + 1);
 	}
 
+	@Override
 	public int nextSetBitZ(int x, int y, int z)
 	{
 		checkDimensions(x, y, z);
@@ -179,60 +209,868 @@ public class BitCube
 		}
 	}
 
+	/**
+	 * Given X and Y, returns the index of the first bit in axis-Z that is clear, starting from {@code z}, or -1 if there's none
+	 */
+	public int nextClearBitZ(int x, int y, int z)
+	{
+		checkDimensions(x, y, z);
+		return nextClearBit(z, wordIndex(x, y, 0));
+	}
+
+	private int nextClearBit(int bitIndex, int baseWordIndex)
+	{
+		int u = wordLocalIndex(bitIndex);
+		if (u == zWordCount)
+			return -1;
+
+		long word = ~words[baseWordIndex + u] & (~0L << bitIndex);
+
+		while (true)
+		{
+			if (word != 0)
+			{
+				int index = (u * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+				return (index < zAxisSize) ? index : -1;
+			}
+			if (++u == zWordCount)
+				return -1;
+			word = ~words[baseWordIndex + u];
+		}
+	}
+
+	/**
+	 * Given X and Y, returns the index of the first run of {@code length} consecutive clear bits in axis-Z, or -1 if there's none
+	 */
+	public int findFirstRunZ(int x, int y, int length)
+	{
+		return findFirstRunZ(x, y, 0, length);
+	}
+
+	/**
+	 * Given X and Y, returns the index of the first run of {@code length} consecutive clear bits in axis-Z, starting from {@code z}, or -1
+	 * if there's none. Runs are located a word at a time, by alternately looking for the next clear bit and the next set bit.
+	 */
+	public int findFirstRunZ(int x, int y, int z, int length)
+	{
+		checkDimensions(x, y, z);
+		assert (length > 0);
+		int base = wordIndex(x, y, 0);
+		while (true)
+		{
+			int start = nextClearBit(z, base);
+			if (start < 0 || start + length > zAxisSize)
+				return -1;
+			int end = nextSetBit(start, base);
+			if (end < 0 || end - start >= length)
+				return start;
+			z = end;
+		}
+	}
+
+	/**
+	 * Given X and Y, sets all the bits in the range {@code [fromZ, toZ)} of axis-Z to the given value
+	 */
+	public void setRangeZ(int x, int y, int fromZ, int toZ, boolean value)
+	{
+		checkDimensions(x, y, fromZ);
+		assert (toZ >= fromZ && toZ <= zAxisSize);
+		if (fromZ == toZ)
+			return;
+
+		int base = wordIndex(x, y, 0);
+		int firstWord = wordLocalIndex(fromZ);
+		int lastWord = wordLocalIndex(toZ - 1);
+		long firstMask = ~0L << fromZ;
+		long lastMask = ~0L >>> -toZ;
+		if (firstWord == lastWord)
+		{
+			setMasked(base + firstWord, firstMask & lastMask, value);
+			return;
+		}
+		setMasked(base + firstWord, firstMask, value);
+		if (lastWord - firstWord > 1)
+		{
+			Arrays.fill(words, base + firstWord + 1, base + lastWord, value ? ~0L : 0L);
+			markDirty(base + firstWord + 1, base + lastWord);
+		}
+		setMasked(base + lastWord, lastMask, value);
+	}
+
+	/**
+	 * Given X and Y, clears all the bits in the range {@code [fromZ, toZ)} of axis-Z
+	 */
+	public void clearRangeZ(int x, int y, int fromZ, int toZ)
+	{
+		setRangeZ(x, y, fromZ, toZ, false);
+	}
+
+	private void setMasked(int i, long mask, boolean value)
+	{
+		if (value)
+			words[i] |= mask;
+		else
+			words[i] &= ~mask;
+		markDirty(i);
+	}
+
+	private static enum BitOp
+	{
+		AND, OR, AND_NOT
+	}
+
+	/**
+	 * Performs a logical AND between the axis-Z row of (x, y) and that of (srcX, srcY), storing the result in the former
+	 */
+	public void andZ(int x, int y, int srcX, int srcY)
+	{
+		combineZ(x, y, this, srcX, srcY, BitOp.AND);
+	}
+
+	/**
+	 * Performs a logical OR between the axis-Z row of (x, y) and that of (srcX, srcY), storing the result in the former
+	 */
+	public void orZ(int x, int y, int srcX, int srcY)
+	{
+		combineZ(x, y, this, srcX, srcY, BitOp.OR);
+	}
+
+	/**
+	 * Clears all the bits in the axis-Z row of (x, y) that are set in that of (srcX, srcY)
+	 */
+	public void andNotZ(int x, int y, int srcX, int srcY)
+	{
+		combineZ(x, y, this, srcX, srcY, BitOp.AND_NOT);
+	}
+
+	/**
+	 * Same as {@link #andZ(int, int, int, int)}, with the source row taken from another cube (having the same Z-axis size)
+	 */
+	public void andZ(int x, int y, BitCube src, int srcX, int srcY)
+	{
+		combineZ(x, y, src, srcX, srcY, BitOp.AND);
+	}
+
+	/**
+	 * Same as {@link #orZ(int, int, int, int)}, with the source row taken from another cube (having the same Z-axis size)
+	 */
+	public void orZ(int x, int y, BitCube src, int srcX, int srcY)
+	{
+		combineZ(x, y, src, srcX, srcY, BitOp.OR);
+	}
+
+	/**
+	 * Same as {@link #andNotZ(int, int, int, int)}, with the source row taken from another cube (having the same Z-axis size)
+	 */
+	public void andNotZ(int x, int y, BitCube src, int srcX, int srcY)
+	{
+		combineZ(x, y, src, srcX, srcY, BitOp.AND_NOT);
+	}
+
+	private void combineZ(int x, int y, BitCube src, int srcX, int srcY, BitOp op)
+	{
+		if (src.zAxisSize != zAxisSize)
+			throw new IllegalArgumentException("Z-axis sizes differ");
+		checkDimensions(x, y, 0);
+		src.checkDimensions(srcX, srcY, 0);
+		long[] srcWords = src.words;
+		int dst = wordIndex(x, y, 0);
+		int from = src.wordIndex(srcX, srcY, 0);
+		switch (op)
+		{
+		case AND:
+			for (int u = 0; u < zWordCount; u++)
+				words[dst + u] &= srcWords[from + u];
+			break;
+		case OR:
+			for (int u = 0; u < zWordCount; u++)
+				words[dst + u] |= srcWords[from + u];
+			break;
+		case AND_NOT:
+			for (int u = 0; u < zWordCount; u++)
+				words[dst + u] &= ~srcWords[from + u];
+			break;
+		}
+		markDirty(dst, dst + zWordCount);
+	}
+
 	/**
 	 * Given X and Y, returns how bits in axis-Z are set
 	 */
+	@Override
 	public int getBitCountZ(int x, int y)
 	{
 		checkDimensions(x, y, 0);
-		int index = wordIndex(x, y, 0);
-		int bitCount = 0;
-		for (int i = index; i < index + zWordCount; i++)
-			bitCount += Long.bitCount(words[i]);
-		return bitCount;
+		return BitRows.bitCount(words, wordIndex(x, y, 0), zWordCount);
+	}
+
+	/**
+	 * Given X, stores in {@code counts[y]} how many bits are set in the axis-Z row of each Y. The rows of a given X are consecutive in
+	 * memory, so they are scanned in a single pass, with several independent accumulators per row to keep the CPU pipelines full
+	 */
+	public void getBitCountsZ(int x, int[] counts)
+	{
+		checkDimensions(x, 0, 0);
+		assert (counts.length >= yAxisSize);
+		int i = wordIndex(x, 0, 0);
+		int tail = zWordCount & 3;
+		for (int y = 0; y < yAxisSize; y++)
+		{
+			int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+			int end = i + zWordCount - tail;
+			for (; i < end; i += 4)
+			{
+				c0 += Long.bitCount(words[i]);
+				c1 += Long.bitCount(words[i + 1]);
+				c2 += Long.bitCount(words[i + 2]);
+				c3 += Long.bitCount(words[i + 3]);
+			}
+			for (end += tail; i < end; i++)
+				c0 += Long.bitCount(words[i]);
+			counts[y] = c0 + c1 + c2 + c3;
+		}
+	}
+
+	/**
+	 * Given X, stores in {@code result} the logical OR of the axis-Z rows of all Y's, i.e. the union of their bits. The result is in the
+	 * same format as the words of a row, and its length should be at least {@code ceil(zAxisSize / 64)}
+	 */
+	public void orAxisY(int x, long[] result)
+	{
+		checkDimensions(x, 0, 0);
+		assert (result.length >= zWordCount);
+		int base = wordIndex(x, 0, 0);
+		System.arraycopy(words, base, result, 0, zWordCount);
+		for (int y = 1; y < yAxisSize; y++)
+		{
+			base += zWordCount;
+			for (int u = 0; u < zWordCount; u++) // simple counted loop, vectorized by the JIT compiler
+				result[u] |= words[base + u];
+		}
+	}
+
+	/**
+	 * Given X, stores in {@code result} the logical AND of the axis-Z rows of all Y's, i.e. the intersection of their bits. The result is
+	 * in the same format as the words of a row, and its length should be at least {@code ceil(zAxisSize / 64)}
+	 */
+	public void andAxisY(int x, long[] result)
+	{
+		checkDimensions(x, 0, 0);
+		assert (result.length >= zWordCount);
+		int base = wordIndex(x, 0, 0);
+		System.arraycopy(words, base, result, 0, zWordCount);
+		for (int y = 1; y < yAxisSize; y++)
+		{
+			base += zWordCount;
+			for (int u = 0; u < zWordCount; u++) // simple counted loop, vectorized by the JIT compiler
+				result[u] &= words[base + u];
+		}
+	}
+
+	/**
+	 * Given X, stores in {@code result[y]} the index of the first bit set in the axis-Z row of each Y, starting from {@code z}, or -1 if
+	 * there's none
+	 */
+	public void nextSetBitsZ(int x, int z, int[] result)
+	{
+		checkDimensions(x, 0, z);
+		assert (result.length >= yAxisSize);
+		for (int y = 0, base = wordIndex(x, 0, 0); y < yAxisSize; y++, base += zWordCount)
+			result[y] = nextSetBit(z, base);
+	}
+
+	/**
+	 * a sink for the results of plane-level queries, which may be invoked concurrently by several threads of the executing pool
+	 */
+	public static interface PlaneListener
+	{
+		void found(int x, int y, int value);
+	}
+
+	/**
+	 * Scans the entire X-Y plane, using the given pool, and reports to the listener every (X,Y) whose axis-Z row has at least
+	 * {@code minBitCount} bits set, along with its bit count. Reports are made from the worker threads, in no particular order, and
+	 * the method returns only after all of them were made
+	 */
+	public void searchPlane(int minBitCount, ForkJoinPool pool, PlaneListener listener)
+	{
+		pool.invoke(new BitCountTask(0, xAxisSize * yAxisSize, minBitCount, listener));
+	}
+
+	/**
+	 * Same as {@link #orAxisY(int, long[])}, only splits the Y rows among the threads of the given pool
+	 */
+	public void orAxisY(int x, long[] result, ForkJoinPool pool)
+	{
+		checkDimensions(x, 0, 0);
+		assert (result.length >= zWordCount);
+		long[] union = pool.invoke(new OrTask(x * yAxisSize, (x + 1) * yAxisSize));
+		System.arraycopy(union, 0, result, 0, zWordCount);
+	}
+
+	private int rowsPerTask()
+	{
+		return Math.max(1, PARALLEL_WORDS_PER_TASK / zWordCount);
+	}
+
+	/**
+	 * reports rows in the range {@code [fromRow, toRow)}, where a row number is {@code x * yAxisSize + y}
+	 */
+	private class BitCountTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int fromRow;
+		private final int toRow;
+		private final int minBitCount;
+		private final PlaneListener listener;
+
+		BitCountTask(int fromRow, int toRow, int minBitCount, PlaneListener listener)
+		{
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.minBitCount = minBitCount;
+			this.listener = listener;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (toRow - fromRow > rowsPerTask())
+			{
+				int mid = (fromRow + toRow) >>> 1;
+				invokeAll(new BitCountTask(fromRow, mid, minBitCount, listener), new BitCountTask(mid, toRow, minBitCount, listener));
+				return;
+			}
+			int x = fromRow / yAxisSize;
+			int y = fromRow % yAxisSize;
+			for (int row = fromRow, i = fromRow * zWordCount; row < toRow; row++)
+			{
+				int bitCount = 0;
+				for (int end = i + zWordCount; i < end; i++)
+					bitCount += Long.bitCount(words[i]);
+				if (bitCount >= minBitCount)
+					listener.found(x, y, bitCount);
+				if (++y == yAxisSize)
+				{
+					y = 0;
+					x++;
+				}
+			}
+		}
 	}
 
-	public static interface SearchListener
+	/**
+	 * returns the union of the rows in the range {@code [fromRow, toRow)}, where a row number is {@code x * yAxisSize + y}
+	 */
+	private class OrTask extends RecursiveTask<long[]>
 	{
-		void initialize(int size);
+		private static final long serialVersionUID = 1L;
+
+		private final int fromRow;
+		private final int toRow;
 
-		void add(int index);
+		OrTask(int fromRow, int toRow)
+		{
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		@Override
+		protected long[] compute()
+		{
+			if (toRow - fromRow > rowsPerTask())
+			{
+				int mid = (fromRow + toRow) >>> 1;
+				OrTask right = new OrTask(mid, toRow);
+				right.fork();
+				long[] union = new OrTask(fromRow, mid).compute();
+				long[] other = right.join();
+				for (int u = 0; u < zWordCount; u++)
+					union[u] |= other[u];
+				return union;
+			}
+			long[] union = new long[zWordCount];
+			for (int row = fromRow, base = fromRow * zWordCount; row < toRow; row++, base += zWordCount)
+				for (int u = 0; u < zWordCount; u++)
+					union[u] |= words[base + u];
+			return union;
+		}
 	}
 
+	/**
+	 * @deprecated moved to {@link BitGrid.SearchListener}, and kept here only for binary compatibility with code compiled against earlier
+	 *             versions
+	 */
+	@Deprecated
+	public static interface SearchListener extends BitGrid.SearchListener
+	{}
+
+	/**
+	 * @deprecated kept only for binary compatibility, use {@link #searchAxisZ(int, int, BitGrid.SearchListener)}
+	 */
+	@Deprecated
 	public void searchAxisZ(int x, int y, SearchListener listener)
 	{
-		listener.initialize(getBitCountZ(x, y));
+		searchAxisZ(x, y, (BitGrid.SearchListener) listener);
+	}
+
+	@Override
+	public void searchAxisZ(int x, int y, BitGrid.SearchListener listener)
+	{
+		checkDimensions(x, y, 0);
+		BitRows.search(words, wordIndex(x, y, 0), zWordCount, listener);
+	}
+
+	public static interface IntConsumer
+	{
+		void accept(int value);
+	}
+
+	/**
+	 * Given X and Y, passes the indices in axis-Z where the bits are set, in ascending order, to the consumer. Unlike
+	 * {@link #searchAxisZ(int, int, BitGrid.SearchListener)}, this requires only a single pass over the words of the row, and allocates
+	 * nothing
+	 */
+	public void forEachSetZ(int x, int y, IntConsumer consumer)
+	{
+		checkDimensions(x, y, 0);
 		int base = wordIndex(x, y, 0);
-		for (int i = nextSetBit(0, base); i >= 0; i = nextSetBit(i + 1, base))
-			listener.add(i);
+		for (int u = 0; u < zWordCount; u++)
+		{
+			for (long word = words[base + u]; word != 0L; word &= word - 1)
+				consumer.accept((u * BITS_PER_WORD) + Long.numberOfTrailingZeros(word));
+		}
+	}
+
+	/**
+	 * Returns a new cursor for iterating over the indices in axis-Z where the bits are set. The cursor is meant to be reused by calling
+	 * {@link ZCursor#reset(int, int)} for each row, so that iteration allocates nothing. A cursor is not thread-safe.
+	 */
+	public ZCursor newCursorZ()
+	{
+		return new ZCursor();
+	}
+
+	/**
+	 * A reusable, allocation-free iterator over the indices in axis-Z where the bits are set. Typical usage:
+	 * 
+	 * <pre>
+	 * cursor.reset(x, y);
+	 * for (int z = cursor.next(); z &gt;= 0; z = cursor.next())
+	 * 	...
+	 * </pre>
+	 * 
+	 * Changes made to the row during the iteration may or may not be reflected by the cursor.
+	 */
+	public class ZCursor
+	{
+		private int base;
+		private int u;
+		private long word;
+
+		private ZCursor()
+		{
+			u = zWordCount; // exhausted until reset
+		}
+
+		/**
+		 * positions the cursor at the beginning of the axis-Z row of the given X and Y
+		 */
+		public ZCursor reset(int x, int y)
+		{
+			checkDimensions(x, y, 0);
+			base = wordIndex(x, y, 0);
+			u = 0;
+			word = words[base];
+			return this;
+		}
+
+		/**
+		 * returns the next index in the row where the bit is set, or -1 if there are no more
+		 */
+		public int next()
+		{
+			while (word == 0L)
+			{
+				if (u >= zWordCount - 1)
+				{
+					u = zWordCount;
+					return -1;
+				}
+				word = words[base + (++u)];
+			}
+			int z = (u * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+			word &= word - 1;
+			return z;
+		}
 	}
 
 	/**
 	 * Given X and Y, returns an array of indices in axis-Z where the bits are set
 	 */
+	@Override
 	public int[] getAxisZ(int x, int y)
 	{
-		BasicSearchListener listener = new BasicSearchListener();
-		searchAxisZ(x, y, listener);
-		return listener.result;
+		checkDimensions(x, y, 0);
+		return BitRows.indices(words, wordIndex(x, y, 0), zWordCount);
+	}
+
+	// ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Turns on or off the tracking of modified words, used for replicating the cube incrementally with {@link #drainDelta()} and
+	 * {@link #applyDelta(long[])}. The tracking is coarse, at the granularity of blocks of 8 words, and its memory overhead is about 0.2%
+	 * of the cube's. Turning it on starts with a clean slate, i.e. previous modifications are not reported.
+	 */
+	public void setDirtyTracking(boolean enabled)
+	{
+		if (!enabled)
+			dirty = null;
+		else if (dirty == null)
+			dirty = new long[wordLocalIndex((words.length - 1) >> DIRTY_BLOCK_SHIFT) + 1];
 	}
 
-	private static class BasicSearchListener implements SearchListener
+	public boolean isDirtyTracking()
 	{
-		int[] result;
-		int counter;
+		return dirty != null;
+	}
 
-		@Override
-		public void initialize(int size)
+	/**
+	 * Returns the words modified since the previous call (or since tracking was turned on), as consecutive pairs of word-index and
+	 * word-value, and starts tracking anew. The result is meant to be passed to {@link #applyDelta(long[])} of a replica. Note that all the
+	 * words in a modified block are returned, including those that weren't changed themselves.
+	 * <p>
+	 * If more words were modified than a single array can hold (i.e. more than 2^30), only some of them are returned, and the rest remain
+	 * marked as modified, to be returned by the next call.
+	 * 
+	 * @throws IllegalStateException
+	 *             if dirty tracking is off
+	 */
+	public long[] drainDelta()
+	{
+		return drainDelta(MAX_DELTA_LENGTH / 2);
+	}
+
+	/**
+	 * Same as {@link #drainDelta()}, except that no more than {@code maxWords} words (rounded down to whole blocks of 8) are returned. The
+	 * modified words that don't fit remain marked, to be returned by the next call, so a replica is up to date once an empty delta is
+	 * returned.
+	 */
+	public long[] drainDelta(int maxWords)
+	{
+		if (dirty == null)
+			throw new IllegalStateException("dirty tracking is off");
+		int blockSize = 1 << DIRTY_BLOCK_SHIFT;
+		if (maxWords < blockSize || maxWords > MAX_DELTA_LENGTH / 2)
+			throw new IllegalArgumentException("maxWords");
+		long count = 0L;
+		for (long bits : dirty)
+			count += Long.bitCount(bits);
+		int blocks = (int) Math.min(count, maxWords / blockSize);
+		long[] delta = new long[2 * blocks * blockSize]; // possibly a bit more than needed, if the last (partial) block is included
+		int n = 0;
+		for (int d = 0; d < dirty.length && blocks > 0; d++)
 		{
-			result = new int[size];
-			counter = 0;
+			for (long bits = dirty[d]; bits != 0L && blocks > 0; bits &= bits - 1, blocks--)
+			{
+				int first = ((d << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(bits)) << DIRTY_BLOCK_SHIFT;
+				for (int i = first, end = Math.min(first + blockSize, words.length); i < end; i++)
+				{
+					delta[n++] = i;
+					delta[n++] = words[i];
+				}
+				dirty[d] &= ~Long.lowestOneBit(bits);
+			}
 		}
+		return (n == delta.length) ? delta : Arrays.copyOf(delta, n);
+	}
 
-		@Override
-		public void add(int index)
+	/**
+	 * Applies a delta produced by {@link #drainDelta()} of another cube with the same dimensions. If dirty tracking is on, the words
+	 * written are marked as modified, so that the delta can be passed along to another replica.
+	 */
+	public void applyDelta(long[] delta)
+	{
+		if ((delta.length & 1) != 0)
+			throw new IllegalArgumentException("delta must consist of index-word pairs");
+		for (int n = 0; n < delta.length; n += 2)
 		{
-			result[counter++] = index;
+			int i = (int) delta[n];
+			words[i] = delta[n + 1];
+			markDirty(i);
 		}
-	};
+	}
+
+	private void markDirty(int i)
+	{
+		if (dirty != null)
+		{
+			int block = i >>> DIRTY_BLOCK_SHIFT;
+			dirty[wordLocalIndex(block)] |= 1L << block;
+		}
+	}
+
+	/**
+	 * marks the words in the range {@code [from, to)} as modified
+	 */
+	private void markDirty(int from, int to)
+	{
+		if (dirty != null)
+			for (int block = from >>> DIRTY_BLOCK_SHIFT, last = (to - 1) >>> DIRTY_BLOCK_SHIFT; block <= last; block++)
+				dirty[wordLocalIndex(block)] |= 1L << block;
+	}
+
+	private final static long SNAPSHOT_MAGIC = 0x5041_4E53_4542_5543L; // "CUBESNAP" in little-endian
+	private final static int SNAPSHOT_VERSION = 1;
+	private final static int SNAPSHOT_HEADER_SIZE = 40;
+	private final static int SNAPSHOT_FLAG_COMPRESSED = 1;
+	private final static int SNAPSHOT_CHUNK_SIZE = 1 << 20; // in bytes
+	private final static int MIN_ZERO_RUN = 2; // shorter runs of zero words are written as literals
+
+	/**
+	 * Writes a snapshot of the cube to the given channel, from which it can be recreated with {@link #readFrom(ReadableByteChannel)}. The
+	 * snapshot starts with a small header (dimensions, format version and a checksum of the data), followed by the words of the cube. If
+	 * {@code compress} is set, runs of zero words are run-length encoded, which makes a big difference for cubes that are mostly empty.
+	 * <p>
+	 * The cube must not be modified while the snapshot is being written.
+	 */
+	public void writeTo(WritableByteChannel channel, boolean compress) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(compress ? SNAPSHOT_FLAG_COMPRESSED : 0);
+		header.putInt(xAxisSize).putInt(yAxisSize).putInt(zAxisSize).putInt(0).putLong(checksum(words));
+		header.flip();
+		writeFully(channel, header);
+
+		ChunkWriter writer = new ChunkWriter(channel);
+		if (!compress)
+			writer.writeWords(words, 0, words.length);
+		else
+		{
+			// a sequence of tokens: a positive token is followed by that many literal words, a negative one stands for as many zero words
+			int i = 0;
+			while (i < words.length)
+			{
+				int zeros = zeroRunLength(i);
+				if (zeros >= MIN_ZERO_RUN)
+				{
+					writer.writeLong(-zeros);
+					i += zeros;
+					continue;
+				}
+				int end = i + 1;
+				while (end < words.length && (words[end] != 0L || zeroRunLength(end) < MIN_ZERO_RUN))
+					end++;
+				writer.writeLong(end - i);
+				writer.writeWords(words, i, end - i);
+				i = end;
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Creates a cube from a snapshot previously written with {@link #writeTo(WritableByteChannel, boolean)}
+	 * 
+	 * @throws IOException
+	 *             if the channel doesn't contain a valid snapshot, or an I/O error occurs
+	 */
+	public static BitCube readFrom(ReadableByteChannel channel) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header);
+		header.flip();
+		if (header.getLong() != SNAPSHOT_MAGIC)
+			throw new IOException("not a BitCube snapshot");
+		int version = header.getInt();
+		if (version != SNAPSHOT_VERSION)
+			throw new IOException("unsupported snapshot version: " + version);
+		boolean compressed = (header.getInt() & SNAPSHOT_FLAG_COMPRESSED) != 0;
+		int x = header.getInt(), y = header.getInt(), z = header.getInt();
+		header.getInt();
+		long checksum = header.getLong();
+		if (x <= 0 || y <= 0 || z <= 0 || (long) x * y * ((z + BITS_PER_WORD - 1L) / BITS_PER_WORD) > Integer.MAX_VALUE - 8)
+			throw new IOException("corrupt snapshot, illegal dimensions: " + x + "x" + y + "x" + z);
+
+		BitCube cube = new BitCube(x, y, z);
+		long[] words = cube.words;
+		ChunkReader reader = new ChunkReader(channel);
+		if (!compressed)
+		{
+			reader.expect(8L * words.length);
+			reader.readWords(words, 0, words.length);
+		}
+		else
+		{
+			// the reader is only told about bytes known to belong to the snapshot, i.e. the next token and the literals it announces
+			reader.expect(8L);
+			int i = 0;
+			while (i < words.length)
+			{
+				long token = reader.readLong();
+				int left = words.length - i;
+				if (token == 0L || token > left || token < -left)
+					throw new IOException("corrupt snapshot");
+				if (token > 0L)
+				{
+					i += (int) token;
+					reader.expect(8L * token + ((i < words.length) ? 8L : 0L));
+					reader.readWords(words, i - (int) token, (int) token);
+				}
+				else
+				{
+					i -= (int) token; // zeros are already there
+					if (i < words.length)
+						reader.expect(8L);
+				}
+			}
+		}
+		if (checksum(words) != checksum)
+			throw new IOException("snapshot checksum mismatch");
+		return cube;
+	}
+
+	private int zeroRunLength(int i)
+	{
+		int end = i;
+		while (end < words.length && words[end] == 0L)
+			end++;
+		return end - i;
+	}
+
+	private static long checksum(long[] words)
+	{
+		long h0 = 0L, h1 = 0L;
+		int i = 0;
+		for (; i + 1 < words.length; i += 2)
+		{
+			h0 = (h0 ^ words[i]) * 0x9E37_79B9_7F4A_7C15L;
+			h1 = (h1 ^ words[i + 1]) * 0xC2B2_AE3D_27D4_EB4FL;
+		}
+		if (i < words.length)
+			h0 = (h0 ^ words[i]) * 0x9E37_79B9_7F4A_7C15L;
+		return h0 ^ Long.rotateLeft(h1, 31) ^ words.length;
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException("unexpected end of snapshot");
+	}
+
+	/**
+	 * writes words to a channel through a direct buffer, so that the channel can transfer them without further copying
+	 */
+	private static class ChunkWriter
+	{
+		private final WritableByteChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		ChunkWriter(WritableByteChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		void writeLong(long value) throws IOException
+		{
+			if (buffer.remaining() < 8)
+				flush();
+			buffer.putLong(value);
+		}
+
+		void writeWords(long[] words, int offset, int length) throws IOException
+		{
+			while (length > 0)
+			{
+				if (buffer.remaining() < 8)
+					flush();
+				int n = Math.min(length, buffer.remaining() >> 3);
+				buffer.asLongBuffer().put(words, offset, n);
+				buffer.position(buffer.position() + (n << 3));
+				offset += n;
+				length -= n;
+			}
+		}
+
+		void flush() throws IOException
+		{
+			buffer.flip();
+			writeFully(channel, buffer);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * reads words from a channel through a direct buffer. it never reads past the bytes it was told to {@link #expect(long)}, so that
+	 * whatever follows the snapshot in the channel (e.g. deltas sent over the same socket) is left for the caller
+	 */
+	private static class ChunkReader
+	{
+		private final ReadableByteChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private long owed; // bytes known to belong to the snapshot, that weren't read from the channel yet
+
+		ChunkReader(ReadableByteChannel channel)
+		{
+			this.channel = channel;
+			buffer.limit(0);
+		}
+
+		/**
+		 * makes sure at least one long is available in the buffer
+		 */
+		private void fill() throws IOException
+		{
+			if (buffer.remaining() >= 8)
+				return;
+			buffer.compact();
+			while (buffer.position() < 8)
+			{
+				if (owed <= 0L)
+					throw new IllegalStateException("reading beyond the expected bytes");
+				buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), owed));
+				int n = channel.read(buffer);
+				buffer.limit(buffer.capacity());
+				if (n < 0)
+					throw new EOFException("unexpected end of snapshot");
+				owed -= n;
+			}
+			buffer.flip();
+		}
+
+		/**
+		 * allows the reader to consume the given number of bytes from the channel, in addition to those it was already allowed
+		 */
+		void expect(long bytes)
+		{
+			owed += bytes;
+		}
+
+		long readLong() throws IOException
+		{
+			fill();
+			return buffer.getLong();
+		}
+
+		void readWords(long[] words, int offset, int length) throws IOException
+		{
+			while (length > 0)
+			{
+				fill();
+				int n = Math.min(length, buffer.remaining() >> 3);
+				buffer.asLongBuffer().get(words, offset, n);
+				buffer.position(buffer.position() + (n << 3));
+				offset += n;
+				length -= n;
+			}
+		}
+	}
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.util;
+
+/**
+ * A 3-dimensional bit array, in which the interesting data is assumed to be stored in axis-Z. Implemented by {@link BitCube} (dense, on the
+ * heap), {@link MappedBitCube} (dense, in a memory-mapped file) and {@link SparseBitCube} (for mostly empty cubes).
+ * 
+ * @author Zach Melamed
+ */
+public interface BitGrid
+{
+	public static interface SearchListener
+	{
+		void initialize(int size);
+
+		void add(int index);
+	}
+
+	/**
+	 * returns the (approximate) number of bytes used to store the bits
+	 */
+	long getBufferSize();
+
+	int getXAxisSize();
+
+	int getYAxisSize();
+
+	int getZAxisSize();
+
+	boolean get(int x, int y, int z);
+
+	void set(int x, int y, int z, boolean value);
+
+	boolean getAndSet(int x, int y, int z, boolean value);
+
+	void setAxisX(int y, int z, boolean value);
+
+	void setAxisY(int x, int z, boolean value);
+
+	void setAxisZ(int x, int y, boolean value);
+
+	/**
+	 * Given X and Y, returns the index of the first bit in axis-Z that is set, starting from {@code z}, or -1 if there's none
+	 */
+	int nextSetBitZ(int x, int y, int z);
+
+	/**
+	 * Given X and Y, returns how bits in axis-Z are set
+	 */
+	int getBitCountZ(int x, int y);
+
+	/**
+	 * Given X and Y, reports the number of bits set in axis-Z, followed by their indices, to the listener
+	 */
+	void searchAxisZ(int x, int y, SearchListener listener);
+
+	/**
+	 * Given X and Y, returns an array of indices in axis-Z where the bits are set
+	 */
+	int[] getAxisZ(int x, int y);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.util;
+
+import com.tectonica.util.BitGrid.SearchListener;
+
+/**
+ * Static helpers for scanning axis-Z rows, shared by the dense {@link BitGrid} implementations. A row is given as a range of words in an
+ * array: {@link BitCube} passes its own array, while cubes whose words are stored elsewhere copy the row into one first. The helpers are
+ * static, rather than reading words through an accessor, so that they're inlined into the callers' loops.
+ * 
+ * @author Zach Melamed
+ */
+final class BitRows
+{
+	private final static int ADDRESS_BITS_PER_WORD = 6;
+
+	private BitRows()
+	{}
+
+	/**
+	 * returns the number of bits set in {@code length} words, starting at {@code from}
+	 */
+	static int bitCount(long[] words, int from, int length)
+	{
+		int bitCount = 0;
+		for (int i = from; i < from + length; i++)
+			bitCount += Long.bitCount(words[i]);
+		return bitCount;
+	}
+
+	/**
+	 * reports the number of bits set in the row, followed by their indices, to the listener
+	 */
+	static void search(long[] words, int from, int length, SearchListener listener)
+	{
+		listener.initialize(bitCount(words, from, length));
+		for (int u = 0; u < length; u++)
+			for (long word = words[from + u]; word != 0L; word &= word - 1L)
+				listener.add((u << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word));
+	}
+
+	/**
+	 * returns an array of indices in the row where the bits are set
+	 */
+	static int[] indices(long[] words, int from, int length)
+	{
+		int[] result = new int[bitCount(words, from, length)];
+		int k = 0;
+		for (int u = 0; u < length; u++)
+			for (long word = words[from + u]; word != 0L; word &= word - 1L)
+				result[k++] = (u << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+		return result;
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe variant of {@link BitCube}, in which every modification of a word is done atomically with compare-and-set. This allows
+ * many threads to set bits concurrently, including bits that share a word, without losing updates and without a global lock.
+ * <p>
+ * In addition to the {@link BitGrid} APIs, the class offers {@link #compareAndSetRangeZ(int, int, int, int, boolean, boolean)}, which
+ * sets a range of bits in axis-Z only if all of them have an expected value, e.g. for reserving consecutive slots. Reads are not atomic
+ * across words, i.e. a scan of an axis-Z row may observe concurrent changes in some words and not in others.
+ * 
+ * @author Zach Melamed
+ */
+public class ConcurrentBitCube implements BitGrid
+{
+	private final static int ADDRESS_BITS_PER_WORD = 6;
+
+	private final AtomicLongArray words;
+
+	private final int xAxisSize;
+	private final int yAxisSize;
+	private final int zAxisSize;
+	private final int zWordCount;
+	private final int yWordCount;
+
+	public ConcurrentBitCube(int xAxisSize, int yAxisSize, int zAxisSize)
+	{
+		this.xAxisSize = xAxisSize;
+		this.yAxisSize = yAxisSize;
+		this.zAxisSize = zAxisSize;
+		zWordCount = wordLocalIndex(zAxisSize - 1) + 1;
+		yWordCount = yAxisSize * zWordCount;
+		words = new AtomicLongArray(xAxisSize * yWordCount);
+	}
+
+	private int wordLocalIndex(int bitIndex)
+	{
+		return bitIndex >> ADDRESS_BITS_PER_WORD;
+	}
+
+	private int wordIndex(int x, int y, int z)
+	{
+		return (x * yWordCount) + (y * zWordCount) + wordLocalIndex(z);
+	}
+
+	@Override
+	public long getBufferSize() // in bytes
+	{
+		return (1L * words.length()) << (ADDRESS_BITS_PER_WORD - 3);
+	}
+
+	@Override
+	public int getXAxisSize()
+	{
+		return xAxisSize;
+	}
+
+	@Override
+	public int getYAxisSize()
+	{
+		return yAxisSize;
+	}
+
+	@Override
+	public int getZAxisSize()
+	{
+		return zAxisSize;
+	}
+
+	private void checkDimensions(int x, int y, int z)
+	{
+		assert (x >= 0 && x < xAxisSize);
+		assert (y >= 0 && y < yAxisSize);
+		assert (z >= 0 && z < zAxisSize);
+	}
+
+	@Override
+	public boolean get(int x, int y, int z)
+	{
+		checkDimensions(x, y, z);
+		return (words.get(wordIndex(x, y, z)) & (1L << z)) != 0L;
+	}
+
+	@Override
+	public void set(int x, int y, int z, boolean value)
+	{
+		getAndSet(x, y, z, value);
+	}
+
+	@Override
+	public boolean getAndSet(int x, int y, int z, boolean value)
+	{
+		checkDimensions(x, y, z);
+		return (setMasked(wordIndex(x, y, z), 1L << z, value) & (1L << z)) != 0L;
+	}
+
+	/**
+	 * atomically sets (or clears) the masked bits of a word, returning its previous value
+	 */
+	private long setMasked(int i, long mask, boolean value)
+	{
+		while (true)
+		{
+			long word = words.get(i);
+			long updated = value ? (word | mask) : (word & ~mask);
+			if (updated == word || words.compareAndSet(i, word, updated))
+				return word;
+		}
+	}
+
+	@Override
+	public void setAxisX(int y, int z, boolean value)
+	{
+		checkDimensions(0, y, z);
+		long mask = 1L << z;
+		for (int x = 0, i = wordIndex(x, y, z); x < xAxisSize; x++, i += yWordCount)
+			setMasked(i, mask, value);
+	}
+
+	@Override
+	public void setAxisY(int x, int z, boolean value)
+	{
+		checkDimensions(x, 0, z);
+		long mask = 1L << z;
+		for (int y = 0, i = wordIndex(x, y, z); y < yAxisSize; y++, i += zWordCount)
+			setMasked(i, mask, value);
+	}
+
+	@Override
+	public void setAxisZ(int x, int y, boolean value)
+	{
+		checkDimensions(x, y, 0);
+		int firstWordIndex = wordIndex(x, y, 0);
+		int lastWordIndex = firstWordIndex + zWordCount - 1;
+		for (int i = firstWordIndex; i < lastWordIndex; i++)
+			words.set(i, value ? ~0L : 0L);
+		words.set(lastWordIndex, value ? (~0L >>> -zAxisSize) : 0L);
+	}
+
+	/**
+	 * Given X and Y, sets the bits in the range {@code [fromZ, toZ)} of axis-Z to {@code update}, but only if all of them currently equal
+	 * {@code expect}. Returns whether the update took place.
+	 * <p>
+	 * The words spanned by the range are updated one by one, each with compare-and-set. If the expectation fails in some word, the words
+	 * already updated are rolled back. Hence two threads can never both succeed in updating overlapping ranges, although a reader may observe
+	 * a range partially updated by an attempt that eventually fails.
+	 */
+	public boolean compareAndSetRangeZ(int x, int y, int fromZ, int toZ, boolean expect, boolean update)
+	{
+		checkDimensions(x, y, fromZ);
+		assert (toZ >= fromZ && toZ <= zAxisSize);
+		if (fromZ == toZ)
+			return true;
+
+		int base = wordIndex(x, y, 0);
+		int firstWord = wordLocalIndex(fromZ);
+		int lastWord = wordLocalIndex(toZ - 1);
+		for (int u = firstWord; u <= lastWord; u++)
+		{
+			long mask = rangeMask(u, fromZ, toZ);
+			if (!compareAndSetMasked(base + u, mask, expect, update))
+			{
+				if (expect != update)
+					for (int r = firstWord; r < u; r++)
+						setMasked(base + r, rangeMask(r, fromZ, toZ), expect); // roll back
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * returns the bits of word {@code u} (in an axis-Z row) that fall in the range {@code [fromZ, toZ)}
+	 */
+	private long rangeMask(int u, int fromZ, int toZ)
+	{
+		long mask = ~0L;
+		if (u == wordLocalIndex(fromZ))
+			mask &= ~0L << fromZ;
+		if (u == wordLocalIndex(toZ - 1))
+			mask &= ~0L >>> -toZ;
+		return mask;
+	}
+
+	private boolean compareAndSetMasked(int i, long mask, boolean expect, boolean update)
+	{
+		while (true)
+		{
+			long word = words.get(i);
+			if ((word & mask) != (expect ? mask : 0L))
+				return false;
+			long updated = update ? (word | mask) : (word & ~mask);
+			if (updated == word || words.compareAndSet(i, word, updated))
+				return true;
+		}
+	}
+
+	@Override
+	public int nextSetBitZ(int x, int y, int z)
+	{
+		checkDimensions(x, y, z);
+		return nextSetBit(z, wordIndex(x, y, 0));
+	}
+
+	private int nextSetBit(int bitIndex, int baseWordIndex)
+	{
+		int u = wordLocalIndex(bitIndex);
+		if (u == zWordCount)
+			return -1;
+
+		long word = words.get(baseWordIndex + u) & (~0L << bitIndex);
+
+		while (true)
+		{
+			if (word != 0)
+				return (u << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+			if (++u == zWordCount)
+				return -1;
+			word = words.get(baseWordIndex + u);
+		}
+	}
+
+	@Override
+	public int getBitCountZ(int x, int y)
+	{
+		checkDimensions(x, y, 0);
+		int index = wordIndex(x, y, 0);
+		int bitCount = 0;
+		for (int i = index; i < index + zWordCount; i++)
+			bitCount += Long.bitCount(words.get(i));
+		return bitCount;
+	}
+
+	/**
+	 * note that the number of bits reported to {@link SearchListener#initialize(int)} is taken from the same snapshot of the row as the
+	 * indices reported afterwards, so the two are always consistent
+	 */
+	@Override
+	public void searchAxisZ(int x, int y, SearchListener listener)
+	{
+		checkDimensions(x, y, 0);
+		BitRows.search(rowZ(x, y), 0, zWordCount, listener);
+	}
+
+	@Override
+	public int[] getAxisZ(int x, int y)
+	{
+		checkDimensions(x, y, 0);
+		return BitRows.indices(rowZ(x, y), 0, zWordCount);
+	}
+
+	/**
+	 * copies the words of an axis-Z row into an array, to be scanned by {@link BitRows}. the copy is also what keeps searches consistent
+	 * while the row is modified concurrently
+	 */
+	private long[] rowZ(int x, int y)
+	{
+		int base = wordIndex(x, y, 0);
+		long[] row = new long[zWordCount];
+		for (int u = 0; u < zWordCount; u++)
+			row[u] = words.get(base + u);
+		return row;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.util;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative {@code long} values (typically latencies in nanoseconds), in the spirit of HdrHistogram. Values are counted
+ * in buckets whose width grows with the magnitude of the value, so that any value can be recorded in constant time and space, and every
+ * reported percentile is accurate to within 1% of the actual value. Values smaller than 256 are counted exactly.
+ * <p>
+ * The class is not thread-safe. The intended use is a histogram per thread, merged with {@link #add(LatencyHistogram)} when done.
+ * 
+ * @author Zach Melamed
+ */
+public class LatencyHistogram
+{
+	private final static int SUB_BUCKET_BITS = 7;
+	private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private final static int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+
+	private final long[] counts = new long[BUCKET_COUNT];
+	private long totalCount;
+	private long max;
+	private double sum;
+
+	private static int bucketOf(long value)
+	{
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		if (shift <= 0)
+			return (int) value;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * returns the smallest value counted in the given bucket (or in the one following the last bucket, in which case it overflows to
+	 * {@code Long.MIN_VALUE})
+	 */
+	private static long valueOf(int bucket)
+	{
+		if (bucket < 2 * SUB_BUCKET_COUNT)
+			return bucket;
+		int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+		return ((long) ((bucket & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT)) << shift;
+	}
+
+	public void record(long value)
+	{
+		if (value < 0L)
+			throw new IllegalArgumentException("negative value: " + value);
+		counts[bucketOf(value)]++;
+		totalCount++;
+		sum += value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * adds all the values recorded in another histogram to this one
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			counts[i] += other.counts[i];
+		totalCount += other.totalCount;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	public void reset()
+	{
+		Arrays.fill(counts, 0L);
+		totalCount = 0L;
+		sum = 0.0;
+		max = 0L;
+	}
+
+	public long getTotalCount()
+	{
+		return totalCount;
+	}
+
+	public long getMax()
+	{
+		return max;
+	}
+
+	public double getMean()
+	{
+		return (totalCount == 0L) ? 0.0 : sum / totalCount;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the recorded values fall, e.g. {@code getPercentile(99.9)}. Returns 0 if
+	 * nothing was recorded.
+	 */
+	public long getPercentile(double percentile)
+	{
+		if (totalCount == 0L)
+			return 0L;
+		long target = Math.max(1L, (long) Math.ceil(totalCount * Math.min(percentile, 100.0) / 100.0));
+		long cumulative = 0L;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			cumulative += counts[i];
+			if (cumulative >= target)
+				return Math.min(valueOf(i + 1) - 1L, max); // the highest value counted in the bucket
+		}
+		return max;
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A {@link BitCube} whose words are stored in a memory-mapped file rather than on the heap. It offers the same APIs, but the data survives
+ * restarts (opening an existing file is practically instantaneous, as pages are loaded lazily by the OS), and is not limited to 2^31 words
+ * (i.e. 16 GB).
+ * <p>
+ * The file consists of a small header, holding the dimensions of the cube, followed by the words in little-endian order. It's mapped in
+ * chunks of 1 GB, as a single {@link MappedByteBuffer} can't exceed 2 GB. Changes are written to the file by the OS at its own discretion,
+ * unless {@link #force()} is called.
+ * 
+ * @author Zach Melamed
+ */
+public class MappedBitCube implements BitGrid, Closeable
+{
+	private final static int ADDRESS_BITS_PER_WORD = 6;
+
+	private final static long MAGIC = 0x4542_5543_5449_4231L; // "1BITCUBE" in little-endian
+	private final static int HEADER_SIZE = 64;
+	private final static int CHUNK_SHIFT = 27; // in words, i.e. 1 GB per chunk
+	private final static long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1L;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] chunks;
+
+	private final int xAxisSize;
+	private final int yAxisSize;
+	private final int zAxisSize;
+	private final int zWordCount;
+	private final long yWordCount;
+	private final long wordCount;
+
+	/**
+	 * opens a cube stored in an existing file, or creates a new (empty) one if the file doesn't exist
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the file exists but holds a cube of different dimensions, or its length doesn't match its dimensions
+	 */
+	public MappedBitCube(File file, int xAxisSize, int yAxisSize, int zAxisSize) throws IOException
+	{
+		this(file, xAxisSize, yAxisSize, zAxisSize, true);
+	}
+
+	/**
+	 * opens a cube stored in an existing file, taking the dimensions from the file
+	 */
+	public static MappedBitCube open(File file) throws IOException
+	{
+		if (!file.exists())
+			throw new IllegalArgumentException("file doesn't exist: " + file);
+		return new MappedBitCube(file, 0, 0, 0, false);
+	}
+
+	private MappedBitCube(File file, int xAxisSize, int yAxisSize, int zAxisSize, boolean validate) throws IOException
+	{
+		boolean existing = file.exists() && file.length() > 0L;
+		if (existing && file.length() < HEADER_SIZE)
+			throw new IllegalArgumentException("not a BitCube file: " + file); // mapping its header would have extended it
+		this.file = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileChannel channel = this.file.getChannel();
+			header = channel.map(MapMode.READ_WRITE, 0L, HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if (existing)
+			{
+				if (header.getLong(0) != MAGIC)
+					throw new IllegalArgumentException("not a BitCube file: " + file);
+				int x = header.getInt(8), y = header.getInt(12), z = header.getInt(16);
+				if (x <= 0 || y <= 0 || z <= 0)
+					throw new IllegalArgumentException("corrupt header, illegal dimensions: " + file);
+				if (validate && (x != xAxisSize || y != yAxisSize || z != zAxisSize))
+					throw new IllegalArgumentException("file holds a cube of " + x + "x" + y + "x" + z + ": " + file);
+				xAxisSize = x;
+				yAxisSize = y;
+				zAxisSize = z;
+			}
+			else
+			{
+				if (xAxisSize <= 0 || yAxisSize <= 0 || zAxisSize <= 0)
+					throw new IllegalArgumentException("illegal dimensions");
+				header.putLong(0, MAGIC);
+				header.putInt(8, xAxisSize);
+				header.putInt(12, yAxisSize);
+				header.putInt(16, zAxisSize);
+			}
+
+			this.xAxisSize = xAxisSize;
+			this.yAxisSize = yAxisSize;
+			this.zAxisSize = zAxisSize;
+			zWordCount = wordLocalIndex(zAxisSize - 1) + 1;
+			yWordCount = (long) yAxisSize * zWordCount;
+			wordCount = xAxisSize * yWordCount;
+
+			long dataSize = wordCount << 3;
+			if (!existing)
+				this.file.setLength(HEADER_SIZE + dataSize); // sparse on most file systems, i.e. zeros are not really written
+			else if (this.file.length() != HEADER_SIZE + dataSize)
+				throw new IllegalArgumentException("file length " + this.file.length() + " doesn't match a cube of " + xAxisSize + "x"
+						+ yAxisSize + "x" + zAxisSize + " (truncated or corrupt): " + file);
+			chunks = new MappedByteBuffer[(int) ((wordCount + CHUNK_MASK) >>> CHUNK_SHIFT)];
+			for (int c = 0; c < chunks.length; c++)
+			{
+				long position = HEADER_SIZE + ((long) c << (CHUNK_SHIFT + 3));
+				long size = Math.min(1L << (CHUNK_SHIFT + 3), HEADER_SIZE + dataSize - position);
+				chunks[c] = channel.map(MapMode.READ_WRITE, position, size);
+				chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			this.file.close();
+			throw e;
+		}
+	}
+
+	private int wordLocalIndex(int bitIndex)
+	{
+		return bitIndex >> ADDRESS_BITS_PER_WORD;
+	}
+
+	private long wordIndex(int x, int y, int z)
+	{
+		return (x * yWordCount) + ((long) y * zWordCount) + wordLocalIndex(z);
+	}
+
+	private long getWord(long i)
+	{
+		return chunks[(int) (i >>> CHUNK_SHIFT)].getLong(((int) (i & CHUNK_MASK)) << 3);
+	}
+
+	private void setWord(long i, long word)
+	{
+		chunks[(int) (i >>> CHUNK_SHIFT)].putLong(((int) (i & CHUNK_MASK)) << 3, word);
+	}
+
+	/**
+	 * writes all the changes made so far to the storage device, including the header of a newly created file
+	 */
+	public void force()
+	{
+		for (MappedByteBuffer chunk : chunks)
+			chunk.force();
+		header.force();
+	}
+
+	/**
+	 * closes the underlying file. note that the mapping itself is released only when the cube is garbage-collected
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+	@Override
+	public long getBufferSize() // in bytes
+	{
+		return wordCount << (ADDRESS_BITS_PER_WORD - 3);
+	}
+
+	@Override
+	public int getXAxisSize()
+	{
+		return xAxisSize;
+	}
+
+	@Override
+	public int getYAxisSize()
+	{
+		return yAxisSize;
+	}
+
+	@Override
+	public int getZAxisSize()
+	{
+		return zAxisSize;
+	}
+
+	private void checkDimensions(int x, int y, int z)
+	{
+		assert (x >= 0 && x < xAxisSize);
+		assert (y >= 0 && y < yAxisSize);
+		assert (z >= 0 && z < zAxisSize);
+	}
+
+	@Override
+	public boolean get(int x, int y, int z)
+	{
+		checkDimensions(x, y, z);
+		return (getWord(wordIndex(x, y, z)) & (1L << z)) != 0L;
+	}
+
+	@Override
+	public void set(int x, int y, int z, boolean value)
+	{
+		getAndSet(x, y, z, value);
+	}
+
+	@Override
+	public boolean getAndSet(int x, int y, int z, boolean value)
+	{
+		checkDimensions(x, y, z);
+		long mask = 1L << z;
+		long i = wordIndex(x, y, z);
+		long word = getWord(i);
+		setWord(i, value ? (word | mask) : (word & ~mask));
+		return (word & mask) != 0L;
+	}
+
+	@Override
+	public void setAxisX(int y, int z, boolean value)
+	{
+		checkDimensions(0, y, z);
+		long mask = 1L << z;
+		for (long x = 0, i = wordIndex(0, y, z); x < xAxisSize; x++, i += yWordCount)
+			setWord(i, value ? (getWord(i) | mask) : (getWord(i) & ~mask));
+	}
+
+	@Override
+	public void setAxisY(int x, int z, boolean value)
+	{
+		checkDimensions(x, 0, z);
+		long mask = 1L << z;
+		for (long y = 0, i = wordIndex(x, 0, z); y < yAxisSize; y++, i += zWordCount)
+			setWord(i, value ? (getWord(i) | mask) : (getWord(i) & ~mask));
+	}
+
+	@Override
+	public void setAxisZ(int x, int y, boolean value)
+	{
+		checkDimensions(x, y, 0);
+		long firstWordIndex = wordIndex(x, y, 0);
+		long lastWordIndex = firstWordIndex + zWordCount - 1;
+		for (long i = firstWordIndex; i < lastWordIndex; i++)
+			setWord(i, value ? ~0L : 0L);
+		setWord(lastWordIndex, value ? (~0L >>> -zAxisSize) : 0L);
+	}
+
+	@Override
+	public int nextSetBitZ(int x, int y, int z)
+	{
+		checkDimensions(x, y, z);
+		return nextSetBit(z, wordIndex(x, y, 0));
+	}
+
+	private int nextSetBit(int bitIndex, long baseWordIndex)
+	{
+		int u = wordLocalIndex(bitIndex);
+		if (u == zWordCount)
+			return -1;
+
+		long word = getWord(baseWordIndex + u) & (~0L << bitIndex);
+
+		while (true)
+		{
+			if (word != 0)
+				return (u << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+			if (++u == zWordCount)
+				return -1;
+			word = getWord(baseWordIndex + u);
+		}
+	}
+
+	/**
+	 * Given X and Y, returns how bits in axis-Z are set
+	 */
+	@Override
+	public int getBitCountZ(int x, int y)
+	{
+		checkDimensions(x, y, 0);
+		long index = wordIndex(x, y, 0);
+		int bitCount = 0;
+		for (long i = index; i < index + zWordCount; i++)
+			bitCount += Long.bitCount(getWord(i));
+		return bitCount;
+	}
+
+	@Override
+	public void searchAxisZ(int x, int y, SearchListener listener)
+	{
+		checkDimensions(x, y, 0);
+		BitRows.search(rowZ(x, y), 0, zWordCount, listener);
+	}
+
+	/**
+	 * Given X and Y, returns an array of indices in axis-Z where the bits are set
+	 */
+	@Override
+	public int[] getAxisZ(int x, int y)
+	{
+		checkDimensions(x, y, 0);
+		return BitRows.indices(rowZ(x, y), 0, zWordCount);
+	}
+
+	/**
+	 * copies the words of an axis-Z row into an array, to be scanned by {@link BitRows}
+	 */
+	private long[] rowZ(int x, int y)
+	{
+		long base = wordIndex(x, y, 0);
+		long[] row = new long[zWordCount];
+		for (int u = 0; u < zWordCount; u++)
+			row[u] = getWord(base + u);
+		return row;
+	}
+}
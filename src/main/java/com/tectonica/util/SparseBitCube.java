@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tectonica.util;
+
+import java.util.Arrays;
+
+/**
+ * A {@link BitGrid} for cubes that are mostly empty. Each axis-Z row (i.e. the bits of a given X and Y) is allocated only when one of its
+ * bits is first set, and is stored in one of two forms, whichever is smaller:
+ * <ul>
+ * <li>an <i>array</i> - sorted indices of the bits that are set, taking 32 bits per set bit
+ * <li>a <i>bitmap</i> - a vector of long-primitives, as in {@link BitCube}, taking 1 bit per Z index
+ * </ul>
+ * A row starts as an array, and is converted to a bitmap once it has more than {@code zAxisSize / 32} bits set. The memory saved compared to
+ * {@link BitCube} therefore comes from empty rows, and from rows with fewer than 1 in 32 bits set.
+ * 
+ * @author Zach Melamed
+ */
+public class SparseBitCube implements BitGrid
+{
+	private final static int ADDRESS_BITS_PER_WORD = 6;
+	private final static int BITS_PER_WORD = 1 << ADDRESS_BITS_PER_WORD;
+
+	/**
+	 * each row is either null (all clear), an {@code int[]} (array form) or a {@code long[]} (bitmap form)
+	 */
+	private final Object[] rows;
+
+	private final int xAxisSize;
+	private final int yAxisSize;
+	private final int zAxisSize;
+	private final int zWordCount;
+	private final int maxArrayLength;
+
+	public SparseBitCube(int xAxisSize, int yAxisSize, int zAxisSize)
+	{
+		this.xAxisSize = xAxisSize;
+		this.yAxisSize = yAxisSize;
+		this.zAxisSize = zAxisSize;
+		zWordCount = wordLocalIndex(zAxisSize - 1) + 1;
+		maxArrayLength = zWordCount * 2; // an array of this length takes as much memory as a bitmap
+		rows = new Object[xAxisSize * yAxisSize];
+	}
+
+	private int wordLocalIndex(int bitIndex)
+	{
+		return bitIndex >> ADDRESS_BITS_PER_WORD;
+	}
+
+	private int rowIndex(int x, int y)
+	{
+		return (x * yAxisSize) + y;
+	}
+
+	@Override
+	public long getBufferSize() // in bytes, assuming compressed references
+	{
+		long size = 16L + 4L * rows.length;
+		for (Object row : rows)
+		{
+			if (row instanceof int[])
+				size += 16L + 4L * ((int[]) row).length;
+			else if (row != null)
+				size += 16L + 8L * zWordCount;
+		}
+		return size;
+	}
+
+	@Override
+	public int getXAxisSize()
+	{
+		return xAxisSize;
+	}
+
+	@Override
+	public int getYAxisSize()
+	{
+		return yAxisSize;
+	}
+
+	@Override
+	public int getZAxisSize()
+	{
+		return zAxisSize;
+	}
+
+	private void checkDimensions(int x, int y, int z)
+	{
+		assert (x >= 0 && x < xAxisSize);
+		assert (y >= 0 && y < yAxisSize);
+		assert (z >= 0 && z < zAxisSize);
+	}
+
+	@Override
+	public boolean get(int x, int y, int z)
+	{
+		checkDimensions(x, y, z);
+		Object row = rows[rowIndex(x, y)];
+		if (row == null)
+			return false;
+		if (row instanceof int[])
+			return Arrays.binarySearch((int[]) row, z) >= 0;
+		return (((long[]) row)[wordLocalIndex(z)] & (1L << z)) != 0L;
+	}
+
+	@Override
+	public void set(int x, int y, int z, boolean value)
+	{
+		getAndSet(x, y, z, value);
+	}
+
+	@Override
+	public boolean getAndSet(int x, int y, int z, boolean value)
+	{
+		checkDimensions(x, y, z);
+		int r = rowIndex(x, y);
+		Object row = rows[r];
+		if (row == null)
+		{
+			if (value)
+				rows[r] = new int[] { z };
+			return false;
+		}
+		if (row instanceof long[])
+		{
+			long[] bitmap = (long[]) row;
+			long mask = 1L << z;
+			int i = wordLocalIndex(z);
+			boolean wasSet = (bitmap[i] & mask) != 0L;
+			if (value)
+				bitmap[i] |= mask;
+			else
+				bitmap[i] &= ~mask;
+			return wasSet;
+		}
+
+		int[] array = (int[]) row;
+		int pos = Arrays.binarySearch(array, z);
+		boolean wasSet = (pos >= 0);
+		if (wasSet == value)
+			return wasSet; // no change
+		if (value)
+		{
+			pos = -(pos + 1);
+			if (array.length == maxArrayLength)
+			{
+				long[] bitmap = toBitmap(array);
+				bitmap[wordLocalIndex(z)] |= 1L << z;
+				rows[r] = bitmap;
+			}
+			else
+			{
+				int[] updated = new int[array.length + 1];
+				System.arraycopy(array, 0, updated, 0, pos);
+				updated[pos] = z;
+				System.arraycopy(array, pos, updated, pos + 1, array.length - pos);
+				rows[r] = updated;
+			}
+		}
+		else if (array.length == 1)
+		{
+			rows[r] = null;
+		}
+		else
+		{
+			int[] updated = new int[array.length - 1];
+			System.arraycopy(array, 0, updated, 0, pos);
+			System.arraycopy(array, pos + 1, updated, pos, updated.length - pos);
+			rows[r] = updated;
+		}
+		return wasSet;
+	}
+
+	private long[] toBitmap(int[] array)
+	{
+		long[] bitmap = new long[zWordCount];
+		for (int z : array)
+			bitmap[wordLocalIndex(z)] |= 1L << z;
+		return bitmap;
+	}
+
+	@Override
+	public void setAxisX(int y, int z, boolean value)
+	{
+		checkDimensions(0, y, z);
+		for (int x = 0; x < xAxisSize; x++)
+			getAndSet(x, y, z, value);
+	}
+
+	@Override
+	public void setAxisY(int x, int z, boolean value)
+	{
+		checkDimensions(x, 0, z);
+		for (int y = 0; y < yAxisSize; y++)
+			getAndSet(x, y, z, value);
+	}
+
+	@Override
+	public void setAxisZ(int x, int y, boolean value)
+	{
+		checkDimensions(x, y, 0);
+		if (!value)
+		{
+			rows[rowIndex(x, y)] = null;
+			return;
+		}
+		long[] bitmap = new long[zWordCount];
+		Arrays.fill(bitmap, ~0L);
+		bitmap[zWordCount - 1] = ~0L >>> -zAxisSize;
+		rows[rowIndex(x, y)] = bitmap;
+	}
+
+	@Override
+	public int nextSetBitZ(int x, int y, int z)
+	{
+		checkDimensions(x, y, z);
+		return nextSetBit(rows[rowIndex(x, y)], z);
+	}
+
+	private int nextSetBit(Object row, int bitIndex)
+	{
+		if (row == null)
+			return -1;
+		if (row instanceof int[])
+		{
+			int[] array = (int[]) row;
+			int pos = Arrays.binarySearch(array, bitIndex);
+			if (pos < 0)
+				pos = -(pos + 1);
+			return (pos < array.length) ? array[pos] : -1;
+		}
+
+		long[] bitmap = (long[]) row;
+		int u = wordLocalIndex(bitIndex);
+		if (u >= zWordCount)
+			return -1;
+		long word = bitmap[u] & (~0L << bitIndex);
+		while (true)
+		{
+			if (word != 0)
+				return (u * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+			if (++u == zWordCount)
+				return -1;
+			word = bitmap[u];
+		}
+	}
+
+	@Override
+	public int getBitCountZ(int x, int y)
+	{
+		checkDimensions(x, y, 0);
+		return bitCount(rows[rowIndex(x, y)]);
+	}
+
+	private int bitCount(Object row)
+	{
+		if (row == null)
+			return 0;
+		if (row instanceof int[])
+			return ((int[]) row).length;
+		int bitCount = 0;
+		for (long word : (long[]) row)
+			bitCount += Long.bitCount(word);
+		return bitCount;
+	}
+
+	@Override
+	public void searchAxisZ(int x, int y, SearchListener listener)
+	{
+		checkDimensions(x, y, 0);
+		Object row = rows[rowIndex(x, y)];
+		listener.initialize(bitCount(row));
+		if (row instanceof int[])
+		{
+			for (int z : (int[]) row)
+				listener.add(z);
+		}
+		else if (row != null)
+		{
+			for (int i = nextSetBit(row, 0); i >= 0; i = nextSetBit(row, i + 1))
+				listener.add(i);
+		}
+	}
+
+	@Override
+	public int[] getAxisZ(int x, int y)
+	{
+		checkDimensions(x, y, 0);
+		Object row = rows[rowIndex(x, y)];
+		if (row == null)
+			return new int[0];
+		if (row instanceof int[])
+			return ((int[]) row).clone();
+		int[] result = new int[bitCount(row)];
+		for (int i = nextSetBit(row, 0), counter = 0; i >= 0; i = nextSetBit(row, i + 1))
+			result[counter++] = i;
+		return result;
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Zach Melamed
+ * 
+ * Latest version available online at https://github.com/zach-m/tectonica-commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tectonica.util;
+
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.tectonica.util.StressExecutor.StressRunnable;
+
+/**
+ * A reusable load-generation engine, for benchmarks and load tests. A fixed set of worker threads repeatedly invokes a
+ * {@link StressRunnable} for a warmup phase followed by a measurement phase, recording the latency of each invocation in a per-thread
+ * {@link LatencyHistogram}. Usage:
+ * 
+ * <pre>
+ * try (StressEngine engine = new StressEngine(8).warmup(2, TimeUnit.SECONDS).measure(10, TimeUnit.SECONDS).targetRate(50_000))
+ * {
+ * 	System.out.println(engine.run(runnable));
+ * }
+ * </pre>
+ * 
+ * By default the engine runs closed-loop, i.e. each worker starts the next invocation as soon as the previous one returns. When a target
+ * rate is set it runs open-loop: invocations are scheduled at fixed intervals, and latency is measured from the scheduled time rather than
+ * the actual one, so that stalls are reflected in the percentiles instead of just lowering the throughput.
+ * <p>
+ * Each worker passes its own number (0 to {@code threads - 1}) as {@code threadNo}, and indices that are unique across workers. The
+ * slice hooks of {@link StressRunnable} are not used. Runtime exceptions thrown by the runnable are counted as errors, and the first one
+ * is kept in the report. Anything else it throws (e.g. an {@link AssertionError}) aborts the run, and is rethrown by
+ * {@link #run(StressRunnable)} once all the workers have stopped.
+ * 
+ * @author Zach Melamed
+ */
+public class StressEngine implements Closeable
+{
+	private final int threads;
+	private final ExecutorService executor;
+	private long warmupNanos = 0L;
+	private long measureNanos = TimeUnit.SECONDS.toNanos(10);
+	private double targetRate = 0.0;
+
+	public StressEngine(int threads)
+	{
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive");
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	public StressEngine warmup(long duration, TimeUnit unit)
+	{
+		warmupNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	public StressEngine measure(long duration, TimeUnit unit)
+	{
+		measureNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	/**
+	 * sets the total number of operations per second to schedule (across all threads), or 0 for closed-loop execution
+	 */
+	public StressEngine targetRate(double opsPerSecond)
+	{
+		targetRate = opsPerSecond;
+		return this;
+	}
+
+	/**
+	 * runs the warmup and measurement phases, and returns a report of the latter. The engine may be run again afterwards.
+	 * 
+	 * @throws Error
+	 *             (or any other non-{@link RuntimeException}) thrown by the runnable, which aborts the run
+	 */
+	public Report run(final StressRunnable runnable) throws InterruptedException
+	{
+		final long start = System.nanoTime();
+		final long measureStart = start + warmupNanos;
+		final long end = measureStart + measureNanos;
+		final long interval = (targetRate > 0.0) ? Math.max(1L, (long) (1_000_000_000.0 * threads / targetRate)) : 0L;
+
+		final Worker[] workers = new Worker[threads];
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<Throwable> fatal = new AtomicReference<>();
+		for (int i = 0; i < threads; i++)
+		{
+			final Worker worker = workers[i] = new Worker(i);
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						// workers are staggered in open-loop mode, so that together they issue an operation every interval/threads
+						worker.work(runnable, start + (interval * worker.threadNo) / threads, measureStart, end, interval, fatal);
+					}
+					catch (Throwable t)
+					{
+						fatal.compareAndSet(null, t); // the other workers stop before their next invocation
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+
+		Throwable t = fatal.get();
+		if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		else if (t instanceof Error)
+			throw (Error) t;
+		else if (t != null)
+			throw new IllegalStateException("Not unchecked", t);
+
+		Report report = new Report(measureNanos);
+		for (Worker worker : workers)
+			report.add(worker);
+		return report;
+	}
+
+	/**
+	 * stops the worker threads
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+	}
+
+	// ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	private class Worker
+	{
+		private final int threadNo;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private long operations;
+		private long errors;
+		private RuntimeException firstError;
+
+		Worker(int threadNo)
+		{
+			this.threadNo = threadNo;
+		}
+
+		void work(StressRunnable runnable, long scheduled, long measureStart, long end, long interval, AtomicReference<Throwable> fatal)
+		{
+			for (int index = threadNo;; index += threads)
+			{
+				if (fatal.get() != null)
+					return; // another worker aborted the run
+				long now = System.nanoTime();
+				long begin = now;
+				if (interval > 0L)
+				{
+					for (; now < scheduled; now = System.nanoTime())
+						LockSupport.parkNanos(scheduled - now);
+					begin = scheduled; // when running behind schedule, this is in the past
+					scheduled += interval;
+				}
+				if (begin >= end || now >= end)
+					return;
+
+				boolean failed = false;
+				try
+				{
+					runnable.run(index, threadNo);
+				}
+				catch (RuntimeException e)
+				{
+					failed = true;
+					if (firstError == null)
+						firstError = e;
+				}
+
+				if (begin >= measureStart)
+				{
+					if (failed)
+						errors++;
+					else
+					{
+						operations++;
+						latency.record(System.nanoTime() - begin);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The results of the measurement phase of a {@link StressEngine#run(StressRunnable)}. Latencies are in nanoseconds.
+	 */
+	public static class Report
+	{
+		private final long measureNanos;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private long operations;
+		private long errors;
+		private RuntimeException firstError;
+
+		private Report(long measureNanos)
+		{
+			this.measureNanos = measureNanos;
+		}
+
+		private void add(StressEngine.Worker worker)
+		{
+			latency.add(worker.latency);
+			operations += worker.operations;
+			errors += worker.errors;
+			if (firstError == null)
+				firstError = worker.firstError;
+		}
+
+		/**
+		 * returns the number of successful operations
+		 */
+		public long getOperations()
+		{
+			return operations;
+		}
+
+		public long getErrors()
+		{
+			return errors;
+		}
+
+		/**
+		 * returns the first exception thrown by the runnable (possibly during the warmup), or null if there was none
+		 */
+		public RuntimeException getFirstError()
+		{
+			return firstError;
+		}
+
+		/**
+		 * returns the number of successful operations per second
+		 */
+		public double getThroughput()
+		{
+			return operations * 1_000_000_000.0 / measureNanos;
+		}
+
+		public LatencyHistogram getLatency()
+		{
+			return latency;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%,d ops (%,.0f ops/sec), %,d errors, latency [us]: p50=%.1f p99=%.1f p999=%.1f max=%.1f mean=%.1f",
+					operations, getThroughput(), errors, latency.getPercentile(50.0) / 1000.0, latency.getPercentile(99.0) / 1000.0,
+					latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0, latency.getMean() / 1000.0);
+		}
+	}
+}
@@ -18,14 +18,28 @@
 
 package com.tectonica.util;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Invokes a {@link StressRunnable} for each index in a range, splitting the range into slices that are executed concurrently by a
+ * {@link ForkJoinPool}. Slices are either of a fixed maximal size, or adaptive, in which case a slice is split only while the pool's
+ * workers lack queued work to steal. See {@link StressEngine} for time-based runs with throughput and latency reporting.
+ * 
+ * @author Zach Melamed
+ */
 public class StressExecutor extends RecursiveAction
 {
 	private static final long serialVersionUID = 1L;
 
+	private static final int ADAPTIVE = 0;
+	private static final int MAX_SURPLUS_TASKS = 3;
+	private static final long BLOCKING_THREAD_STACK_SIZE = 256 * 1024;
+
 	public static abstract class StressRunnable
 	{
 		public abstract void run(int index, int threadNo);
@@ -82,6 +96,14 @@ public class StressExecutor extends RecursiveAction
 		config = new GlobalParams(maxThreads, maxSliceSize, runnable);
 	}
 
+	/**
+	 * external constructor for invocation by the user, with adaptive slicing
+	 */
+	public StressExecutor(int from, int to, int maxThreads, StressRunnable runnable)
+	{
+		this(from, to, maxThreads, ADAPTIVE, runnable);
+	}
+
 	/**
 	 * internal constructor for the forks
 	 */
@@ -94,14 +116,90 @@ public class StressExecutor extends RecursiveAction
 	public void execute()
 	{
 		ForkJoinPool pool = new ForkJoinPool(config.maxThreads);
+		try
+		{
+			pool.invoke(this);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * executes in a given pool (whose parallelism overrides {@code maxThreads}), which may be reused across executions
+	 */
+	public void execute(ForkJoinPool pool)
+	{
 		pool.invoke(this);
 	}
 
+	/**
+	 * Executes with up to {@code concurrency} slices in flight, each on its own thread, for runnables that spend most of their time
+	 * blocked on I/O rather than on the CPU. The threads are created with small stacks, so that concurrency in the order of 10,000 is
+	 * feasible on a single JVM, and are stopped when the execution completes. Slices are the same as in {@link #execute()}, except that in
+	 * adaptive mode, every index makes a slice of its own. The {@code threadNo} passed to the runnable is the index of the thread running
+	 * the slice, between 0 and {@code concurrency - 1}.
+	 * <p>
+	 * If the runnable throws, the remaining slices are not started, and the first exception is rethrown once all threads have stopped.
+	 */
+	public void executeBlocking(int concurrency) throws InterruptedException
+	{
+		if (concurrency <= 0)
+			throw new IllegalArgumentException("concurrency");
+
+		final int sliceSize = (config.maxSliceSize == ADAPTIVE) ? 1 : config.maxSliceSize;
+		final AtomicInteger next = new AtomicInteger(slice.from);
+		int slices = (int) ((slice.to - (long) slice.from + sliceSize - 1) / sliceSize);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < Math.min(concurrency, slices); i++)
+		{
+			final int threadNo = i;
+			Thread thread = new Thread(null, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						int from;
+						// the last condition guards against overflow
+						while (failure.get() == null && (from = next.getAndAdd(sliceSize)) < slice.to && from >= slice.from)
+						{
+							int to = (int) Math.min(slice.to, (long) from + sliceSize);
+							new StressExecutor(new SliceParams(from, to), config).computeSlice(threadNo);
+						}
+					}
+					catch (Throwable t)
+					{
+						failure.compareAndSet(null, t); // the other threads stop before their next slice
+					}
+				}
+			}, "stress-" + i, BLOCKING_THREAD_STACK_SIZE);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		Throwable t = failure.get();
+		if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		else if (t instanceof Error)
+			throw (Error) t;
+		else if (t != null)
+			throw new IllegalStateException("Not unchecked", t);
+	}
+
 	@Override
 	protected void compute()
 	{
 		int length = slice.to - slice.from;
-		if (length <= config.maxSliceSize)
+		boolean atomic = (config.maxSliceSize == ADAPTIVE) ? (length <= 1 || getSurplusQueuedTaskCount() > MAX_SURPLUS_TASKS)
+				: (length <= config.maxSliceSize);
+		if (atomic)
 		{
 			computeSlice(config.nextSeq());
 		}
@@ -0,0 +1,20 @@
+package com.tectonica.test;
+
+import java.util.ArrayList;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.tectonica.test.TestKryoUtil.TestObj;
+import com.tectonica.thirdparty.KryoUtil.Configurator;
+
+/**
+ * registers the classes serialized by the tests, discovered by {@code KryoUtil} through {@code META-INF/services}
+ */
+public class KryoTestConfigurator implements Configurator
+{
+	@Override
+	public void configure(Kryo kryo)
+	{
+		kryo.register(TestObj.class, 100);
+		kryo.register(ArrayList.class, 101);
+	}
+}
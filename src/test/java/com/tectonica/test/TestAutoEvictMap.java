@@ -1,13 +1,22 @@
 package com.tectonica.test;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import com.tectonica.collections.AutoEvictMap;
+import com.tectonica.util.StressExecutor;
+import com.tectonica.util.StressExecutor.StressRunnable;
 
 public class TestAutoEvictMap
 {
@@ -72,4 +81,324 @@ public class TestAutoEvictMap
 
 		Assert.assertEquals(0, map.size());
 	}
+
+	@Test
+	public void testReleasedIsDead() throws Exception
+	{
+		final AtomicInteger created = new AtomicInteger();
+		final AutoEvictMap<String, Object> map = new AutoEvictMap<>(new AutoEvictMap.Factory<String, Object>()
+		{
+			@Override
+			public Object valueOf(String key)
+			{
+				created.incrementAndGet();
+				return new Object();
+			}
+		});
+
+		// without retention, a fully released holder is dead, and its value is never handed out again
+		Object first = map.acquire("a");
+		Assert.assertSame(first, map.acquire("a"));
+		Assert.assertFalse(map.release("a"));
+		Assert.assertTrue(map.release("a"));
+		Assert.assertEquals(0, map.size());
+		Assert.assertTrue(map.release("a")); // releasing a dead key is a no-op
+
+		Object second = map.acquire("a");
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(2, created.get());
+		Assert.assertEquals(2, map.getMissCount());
+		Assert.assertEquals(1, map.getHitCount());
+		Assert.assertTrue(map.release("a"));
+		Assert.assertEquals(0, map.size());
+	}
+
+	@Test
+	public void testRetention() throws Exception
+	{
+		final AtomicInteger created = new AtomicInteger();
+		final AutoEvictMap<String, String> map = new AutoEvictMap<>(new AutoEvictMap.Factory<String, String>()
+		{
+			@Override
+			public String valueOf(String key)
+			{
+				created.incrementAndGet();
+				return "VALUE-FOR-" + key;
+			}
+		}, 2, 200, TimeUnit.MILLISECONDS);
+
+		// a released value is kept idle, and revived by the next acquire
+		Assert.assertEquals("VALUE-FOR-a", map.acquire("a"));
+		Assert.assertTrue(map.release("a"));
+		Assert.assertEquals(1, map.size());
+		Assert.assertEquals(1, map.idleSize());
+		Assert.assertEquals("VALUE-FOR-a", map.acquire("a"));
+		Assert.assertEquals(1, created.get());
+		Assert.assertEquals(1, map.getIdleHitCount());
+		Assert.assertEquals(0, map.idleSize());
+		Assert.assertTrue(map.release("a"));
+
+		// exceeding the max idle entries evicts the least recently released
+		map.acquire("b");
+		map.acquire("c");
+		map.release("b");
+		map.release("c");
+		Assert.assertEquals(2, map.idleSize());
+		Assert.assertEquals(2, map.size());
+		Assert.assertEquals(1, map.getEvictionCount());
+		map.acquire("a");
+		Assert.assertEquals(4, created.get());
+		map.release("a");
+
+		// idle values expire after the TTL
+		Thread.sleep(300);
+		map.cleanUp();
+		Assert.assertEquals(0, map.size());
+		Assert.assertEquals(0, map.idleSize());
+		Assert.assertEquals(4, map.getMissCount());
+	}
+
+	@Test
+	public void testAsync() throws Exception
+	{
+		final AtomicInteger attempts = new AtomicInteger();
+		final AutoEvictMap<String, String> map = new AutoEvictMap<>(new AutoEvictMap.Factory<String, String>()
+		{
+			@Override
+			public String valueOf(String key)
+			{
+				if (attempts.incrementAndGet() == 1)
+					throw new IllegalStateException("first attempt fails");
+				return "VALUE-FOR-" + key;
+			}
+		});
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+
+		// a failed creation is removed from the map, so that the next acquirer retries
+		Future<String> failed = map.acquireAsync("a", exec);
+		try
+		{
+			failed.get();
+			Assert.fail("exception expected");
+		}
+		catch (ExecutionException e)
+		{
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		Future<String> value = map.acquireAsync("a", exec);
+		Assert.assertEquals("VALUE-FOR-a", value.get());
+		Assert.assertEquals("VALUE-FOR-a", map.acquire("a"));
+		Assert.assertEquals(2, attempts.get());
+
+		// releasing the failed future leaves the value that replaced it intact
+		Assert.assertTrue(map.release(failed));
+		Assert.assertEquals(1, map.size());
+		Assert.assertFalse(map.release(value));
+		Assert.assertTrue(map.release("a"));
+		Assert.assertEquals(0, map.size());
+
+		exec.shutdown();
+	}
+
+	@Test
+	public void testReleasePending() throws Exception
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AutoEvictMap<String, String> map = new AutoEvictMap<>(new AutoEvictMap.Factory<String, String>()
+		{
+			@Override
+			public String valueOf(String key)
+			{
+				await(latch);
+				throw new IllegalStateException("creation fails");
+			}
+		}, 2, 0, TimeUnit.MILLISECONDS);
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+
+		// released while still pending, the holder is kept idle until its creation fails
+		Future<String> failed = map.acquireAsync("a", exec);
+		Assert.assertTrue(map.release("a"));
+		Assert.assertEquals(1, map.idleSize());
+		latch.countDown();
+		exec.shutdown();
+		exec.awaitTermination(1, TimeUnit.MINUTES);
+		Assert.assertTrue(failed.isDone());
+		Assert.assertEquals(0, map.size());
+		Assert.assertEquals(0, map.idleSize());
+		Assert.assertEquals(1, map.getEvictionCount());
+
+		// with a weigher, a pending holder can't be weighed, so releasing it discards it without blocking
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AutoEvictMap<String, String> weighed = new AutoEvictMap<>(new AutoEvictMap.Factory<String, String>()
+		{
+			@Override
+			public String valueOf(String key)
+			{
+				await(gate);
+				return "VALUE-FOR-" + key;
+			}
+		}, 100L, 0L, TimeUnit.MILLISECONDS, new AutoEvictMap.Weigher<String, String>()
+		{
+			@Override
+			public long weightOf(String key, String value)
+			{
+				return value.length();
+			}
+		});
+		exec = Executors.newSingleThreadExecutor();
+		Future<String> pending = weighed.acquireAsync("a", exec);
+		Assert.assertTrue(weighed.release("a"));
+		Assert.assertTrue(pending.isCancelled());
+		Assert.assertEquals(0, weighed.size());
+		Assert.assertEquals(0, weighed.idleSize());
+		gate.countDown();
+		exec.shutdown();
+		exec.awaitTermination(1, TimeUnit.MINUTES);
+		Assert.assertEquals("VALUE-FOR-a", weighed.acquire("a"));
+		Assert.assertEquals(2, weighed.getMissCount());
+	}
+
+	private static void await(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await();
+		}
+		catch (InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static final int KEYS = 16;
+	private static final int OPS = 4_000_000;
+
+	/**
+	 * compares acquire/release throughput of the in-place ref-count holders with the former copy-on-update holders
+	 */
+	@Test
+	@Ignore
+	public void stress() throws InterruptedException
+	{
+		final AutoEvictMap<Integer, Integer> map = new AutoEvictMap<>(new AutoEvictMap.Factory<Integer, Integer>()
+		{
+			@Override
+			public Integer valueOf(Integer key)
+			{
+				return key;
+			}
+		});
+		final ImmutableHolderMap legacy = new ImmutableHolderMap();
+		for (int i = 0; i < KEYS; i++)
+		{
+			map.acquire(i); // keep all keys alive throughout the test
+			legacy.acquire(i);
+		}
+
+		for (int threads = 1; threads <= 64; threads *= 2)
+		{
+			for (int rep = 0; rep < 3; rep++)
+			{
+				long newTime = stressOnce(threads, new StressRunnable()
+				{
+					@Override
+					public void run(int index, int threadNo)
+					{
+						try
+						{
+							Integer key = index % KEYS;
+							map.acquire(key);
+							map.release(key);
+						}
+						catch (InterruptedException e)
+						{
+							throw new RuntimeException(e);
+						}
+					}
+				});
+				long oldTime = stressOnce(threads, new StressRunnable()
+				{
+					@Override
+					public void run(int index, int threadNo)
+					{
+						Integer key = index % KEYS;
+						legacy.acquire(key);
+						legacy.release(key);
+					}
+				});
+				System.out.println(String.format("threads=%2d   in-place: %4d ns/op   copy-on-update: %4d ns/op", threads, newTime / OPS,
+						oldTime / OPS));
+			}
+		}
+	}
+
+	private long stressOnce(int threads, StressRunnable runnable)
+	{
+		long before = System.nanoTime();
+		new StressExecutor(0, OPS, threads, OPS / (threads * 16), runnable).execute();
+		return System.nanoTime() - before;
+	}
+
+	/**
+	 * the ref-counting scheme used by AutoEvictMap before holders were updated in-place, kept here as a baseline
+	 */
+	private static class ImmutableHolderMap
+	{
+		private final ConcurrentMap<Integer, Holder> map = new ConcurrentHashMap<>();
+
+		private static class Holder
+		{
+			final int refCount;
+
+			Holder(int refCount)
+			{
+				this.refCount = refCount;
+			}
+
+			@Override
+			public boolean equals(Object obj)
+			{
+				return refCount == ((Holder) obj).refCount;
+			}
+
+			@Override
+			public int hashCode()
+			{
+				return refCount;
+			}
+		}
+
+		public void acquire(Integer key)
+		{
+			while (true)
+			{
+				Holder holder = map.get(key);
+				if (holder == null)
+				{
+					if (map.putIfAbsent(key, new Holder(1)) == null)
+						return;
+				}
+				else if (map.replace(key, holder, new Holder(holder.refCount + 1)))
+					return;
+			}
+		}
+
+		public void release(Integer key)
+		{
+			while (true)
+			{
+				Holder holder = map.get(key);
+				if (holder == null)
+					return;
+				if (holder.refCount == 1)
+				{
+					if (map.remove(key, holder))
+						return;
+				}
+				else if (map.replace(key, holder, new Holder(holder.refCount - 1)))
+					return;
+			}
+		}
+	}
 }
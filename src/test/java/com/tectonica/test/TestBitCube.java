@@ -0,0 +1,700 @@
+package com.tectonica.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.tectonica.util.BitCube;
+import com.tectonica.util.BitCube.IntConsumer;
+import com.tectonica.util.BitCube.PlaneListener;
+import com.tectonica.util.BitGrid;
+import com.tectonica.util.ConcurrentBitCube;
+import com.tectonica.util.MappedBitCube;
+import com.tectonica.util.SparseBitCube;
+import com.tectonica.util.StressExecutor;
+import com.tectonica.util.StressExecutor.StressRunnable;
+
+public class TestBitCube
+{
+	@Test
+	public void testMapped() throws Exception
+	{
+		File file = File.createTempFile("bitcube", ".bin");
+		file.delete();
+		try
+		{
+			try (MappedBitCube cube = new MappedBitCube(file, 3, 4, 130))
+			{
+				cube.set(1, 2, 0, true);
+				cube.set(1, 2, 64, true);
+				cube.set(1, 2, 129, true);
+				cube.setAxisZ(2, 3, true);
+				Assert.assertFalse(cube.getAndSet(0, 0, 5, true));
+				Assert.assertTrue(cube.getAndSet(0, 0, 5, false));
+				cube.force();
+			}
+
+			try (MappedBitCube cube = MappedBitCube.open(file))
+			{
+				Assert.assertEquals(130, cube.getZAxisSize());
+				Assert.assertArrayEquals(new int[] { 0, 64, 129 }, cube.getAxisZ(1, 2));
+				Assert.assertEquals(130, cube.getBitCountZ(2, 3));
+				Assert.assertEquals(64, cube.nextSetBitZ(1, 2, 1));
+				Assert.assertFalse(cube.get(0, 0, 5));
+			}
+
+			try
+			{
+				new MappedBitCube(file, 3, 4, 131);
+				Assert.fail("dimensions mismatch expected");
+			}
+			catch (IllegalArgumentException e)
+			{}
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+			{
+				raf.setLength(raf.length() - 8L);
+			}
+			try
+			{
+				MappedBitCube.open(file);
+				Assert.fail("length mismatch expected");
+			}
+			catch (IllegalArgumentException e)
+			{}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws Exception
+	{
+		Random rand = new Random(1);
+		BitCube cube = new BitCube(50, 60, 700);
+		for (int i = 0; i < 500; i++)
+			cube.set(rand.nextInt(50), rand.nextInt(60), rand.nextInt(700), true);
+		cube.setAxisZ(49, 59, true);
+
+		byte[] plain = snapshot(cube, false);
+		byte[] compressed = snapshot(cube, true);
+		Assert.assertTrue(compressed.length < plain.length / 4);
+		byte[] trailer = { 1, 2, 3, 4, 5 };
+		for (byte[] bytes : new byte[][] { plain, compressed })
+		{
+			// whatever follows the snapshot in the channel is left unread
+			ByteArrayOutputStream followed = new ByteArrayOutputStream();
+			followed.write(bytes);
+			followed.write(trailer);
+			ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(followed.toByteArray()));
+			BitCube copy = BitCube.readFrom(channel);
+			Assert.assertEquals(700, copy.getZAxisSize());
+			for (int x = 0; x < 50; x++)
+				for (int y = 0; y < 60; y++)
+					Assert.assertArrayEquals(cube.getAxisZ(x, y), copy.getAxisZ(x, y));
+			ByteBuffer rest = ByteBuffer.allocate(16);
+			Assert.assertEquals(trailer.length, channel.read(rest));
+			Assert.assertArrayEquals(trailer, Arrays.copyOf(rest.array(), trailer.length));
+		}
+
+		byte[] corrupt = plain.clone();
+		ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN).putInt(16, -50); // x
+		try
+		{
+			BitCube.readFrom(Channels.newChannel(new ByteArrayInputStream(corrupt)));
+			Assert.fail("illegal dimensions expected");
+		}
+		catch (IOException e)
+		{}
+		ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN).putInt(16, 1 << 20).putInt(20, 1 << 20); // x, y
+		try
+		{
+			BitCube.readFrom(Channels.newChannel(new ByteArrayInputStream(corrupt)));
+			Assert.fail("illegal dimensions expected");
+		}
+		catch (IOException e)
+		{}
+
+		compressed[compressed.length - 3] ^= 1;
+		try
+		{
+			BitCube.readFrom(Channels.newChannel(new ByteArrayInputStream(compressed)));
+			Assert.fail("checksum mismatch expected");
+		}
+		catch (IOException e)
+		{}
+		try
+		{
+			BitCube.readFrom(Channels.newChannel(new ByteArrayInputStream(plain, 0, plain.length - 1)));
+			Assert.fail("end of stream expected");
+		}
+		catch (EOFException e)
+		{}
+	}
+
+	@Test
+	public void testDelta()
+	{
+		Random rand = new Random(1);
+		BitCube primary = new BitCube(20, 30, 500);
+		BitCube replica = new BitCube(20, 30, 500);
+		try
+		{
+			primary.drainDelta();
+			Assert.fail("tracking is off");
+		}
+		catch (IllegalStateException e)
+		{}
+		primary.setDirtyTracking(true);
+		Assert.assertEquals(0, primary.drainDelta().length);
+		for (int round = 0; round < 20; round++)
+		{
+			for (int i = 0; i < 100; i++)
+			{
+				int x = rand.nextInt(20), y = rand.nextInt(30), z = rand.nextInt(500);
+				switch (rand.nextInt(5))
+				{
+				case 0:
+					primary.set(x, y, z, rand.nextBoolean());
+					break;
+				case 1:
+					primary.setAxisZ(x, y, rand.nextBoolean());
+					break;
+				case 2:
+					primary.setRangeZ(x, y, z, z + rand.nextInt(500 - z), rand.nextBoolean());
+					break;
+				case 3:
+					primary.orZ(x, y, rand.nextInt(20), rand.nextInt(30));
+					break;
+				case 4:
+					primary.setAxisX(y, z, rand.nextBoolean());
+					break;
+				}
+			}
+			if (round % 2 == 0)
+			{
+				long[] delta = primary.drainDelta();
+				Assert.assertTrue(delta.length < 2 * 20 * 30 * 8);
+				replica.applyDelta(delta);
+			}
+			else
+			{
+				// in limited pieces, until nothing is left
+				long[] delta;
+				while ((delta = primary.drainDelta(70)).length > 0)
+				{
+					Assert.assertTrue(delta.length <= 2 * 64);
+					replica.applyDelta(delta);
+				}
+			}
+			for (int x = 0; x < 20; x++)
+				for (int y = 0; y < 30; y++)
+					Assert.assertArrayEquals(primary.getAxisZ(x, y), replica.getAxisZ(x, y));
+		}
+		Assert.assertEquals(0, primary.drainDelta().length);
+	}
+
+	private static byte[] snapshot(BitCube cube, boolean compress) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		cube.writeTo(Channels.newChannel(out), compress);
+		return out.toByteArray();
+	}
+
+	/**
+	 * measures writing and reading back a 1 GB snapshot file, where 1% of the axis-Z rows have data in them
+	 */
+	@Test
+	@Ignore
+	public void stressSnapshot() throws Exception
+	{
+		Random rand = new Random(1);
+		BitCube cube = new BitCube(512, 1024, 16 * 1024);
+		for (int i = 0; i < 5_000; i++)
+			cube.setAxisZ(rand.nextInt(512), rand.nextInt(1024), true);
+		File file = File.createTempFile("bitcube", ".snap");
+		try
+		{
+			for (boolean compress : new boolean[] { false, true })
+			{
+				long before = System.nanoTime();
+				try (FileChannel channel = new FileOutputStream(file).getChannel())
+				{
+					cube.writeTo(channel, compress);
+				}
+				long writeTime = System.nanoTime() - before;
+
+				before = System.nanoTime();
+				try (FileChannel channel = new FileInputStream(file).getChannel())
+				{
+					BitCube.readFrom(channel);
+				}
+				long readTime = System.nanoTime() - before;
+				System.out.println(String.format("compress=%b: %d MB written in %d ms, read in %d ms", compress, file.length() >> 20,
+						writeTime / 1_000_000, readTime / 1_000_000));
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testSparse()
+	{
+		Random rand = new Random(1);
+		BitGrid dense = new BitCube(5, 6, 200);
+		BitGrid sparse = new SparseBitCube(5, 6, 200);
+		for (int i = 0; i < 20_000; i++)
+		{
+			int x = rand.nextInt(5), y = rand.nextInt(6), z = rand.nextInt(200);
+			boolean value = rand.nextInt(3) > 0;
+			switch (rand.nextInt(50))
+			{
+			case 0:
+				dense.setAxisZ(x, y, value);
+				sparse.setAxisZ(x, y, value);
+				break;
+			case 1:
+				dense.setAxisX(y, z, value);
+				sparse.setAxisX(y, z, value);
+				break;
+			case 2:
+				dense.setAxisY(x, z, value);
+				sparse.setAxisY(x, z, value);
+				break;
+			default:
+				Assert.assertEquals(dense.getAndSet(x, y, z, value), sparse.getAndSet(x, y, z, value));
+			}
+			Assert.assertEquals(dense.get(x, y, z), sparse.get(x, y, z));
+			Assert.assertEquals(dense.nextSetBitZ(x, y, z), sparse.nextSetBitZ(x, y, z));
+			Assert.assertEquals(dense.getBitCountZ(x, y), sparse.getBitCountZ(x, y));
+			Assert.assertArrayEquals(dense.getAxisZ(x, y), sparse.getAxisZ(x, y));
+		}
+	}
+
+	@Test
+	public void testRangesZ()
+	{
+		Random rand = new Random(1);
+		int zSize = 300;
+		BitCube cube = new BitCube(2, 2, zSize);
+		boolean[][] expected = new boolean[2][zSize];
+		for (int i = 0; i < 2_000; i++)
+		{
+			int y = rand.nextInt(2);
+			int from = rand.nextInt(zSize);
+			int to = from + rand.nextInt(zSize - from + 1);
+			boolean value = rand.nextBoolean();
+			switch (rand.nextInt(4))
+			{
+			case 0:
+				cube.setRangeZ(0, y, from, to, value);
+				for (int z = from; z < to; z++)
+					expected[y][z] = value;
+				break;
+			case 1:
+				cube.andZ(0, y, 0, 1 - y);
+				for (int z = 0; z < zSize; z++)
+					expected[y][z] &= expected[1 - y][z];
+				break;
+			case 2:
+				cube.orZ(0, y, 0, 1 - y);
+				for (int z = 0; z < zSize; z++)
+					expected[y][z] |= expected[1 - y][z];
+				break;
+			case 3:
+				cube.andNotZ(0, y, 0, 1 - y);
+				for (int z = 0; z < zSize; z++)
+					expected[y][z] &= !expected[1 - y][z];
+				break;
+			}
+
+			for (int z = 0; z < zSize; z++)
+				Assert.assertEquals(expected[y][z], cube.get(0, y, z));
+			int length = 1 + rand.nextInt(20);
+			Assert.assertEquals(naiveNextClear(expected[y], from), cube.nextClearBitZ(0, y, from));
+			Assert.assertEquals(naiveFirstRun(expected[y], length), cube.findFirstRunZ(0, y, length));
+		}
+
+		BitCube other = new BitCube(1, 1, zSize);
+		other.setAxisZ(0, 0, true);
+		cube.setAxisZ(1, 1, false);
+		cube.orZ(1, 1, other, 0, 0);
+		Assert.assertEquals(zSize, cube.getBitCountZ(1, 1));
+		Assert.assertEquals(-1, cube.nextClearBitZ(1, 1, 0));
+		cube.clearRangeZ(1, 1, 10, 20);
+		Assert.assertEquals(10, cube.findFirstRunZ(1, 1, 10));
+		Assert.assertEquals(-1, cube.findFirstRunZ(1, 1, 11));
+	}
+
+	@Test
+	public void testBulkScans()
+	{
+		Random rand = new Random(1);
+		int ySize = 7, zSize = 333;
+		BitCube cube = new BitCube(2, ySize, zSize);
+		for (int i = 0; i < 3_000; i++)
+			cube.set(1, rand.nextInt(ySize), rand.nextInt(zSize), true);
+		cube.setAxisZ(1, 3, false);
+		cube.set(1, 3, zSize - 1, true);
+
+		int[] counts = new int[ySize];
+		int[] firsts = new int[ySize];
+		cube.getBitCountsZ(1, counts);
+		cube.nextSetBitsZ(1, 100, firsts);
+		for (int y = 0; y < ySize; y++)
+		{
+			Assert.assertEquals(cube.getBitCountZ(1, y), counts[y]);
+			Assert.assertEquals(cube.nextSetBitZ(1, y, 100), firsts[y]);
+		}
+
+		long[] or = new long[(zSize + 63) / 64];
+		long[] and = new long[or.length];
+		cube.orAxisY(1, or);
+		cube.andAxisY(1, and);
+		for (int z = 0; z < zSize; z++)
+		{
+			boolean any = false, all = true;
+			for (int y = 0; y < ySize; y++)
+			{
+				any |= cube.get(1, y, z);
+				all &= cube.get(1, y, z);
+			}
+			Assert.assertEquals(any, (or[z >> 6] & (1L << z)) != 0);
+			Assert.assertEquals(all, (and[z >> 6] & (1L << z)) != 0);
+		}
+
+		cube.orAxisY(0, or);
+		cube.getBitCountsZ(0, counts);
+		Assert.assertArrayEquals(new long[or.length], or);
+		Assert.assertArrayEquals(new int[ySize], counts);
+	}
+
+	@Test
+	public void testParallelPlane()
+	{
+		Random rand = new Random(1);
+		final int xSize = 40, ySize = 300, zSize = 200;
+		BitCube cube = new BitCube(xSize, ySize, zSize);
+		for (int i = 0; i < 200_000; i++)
+			cube.set(rand.nextInt(xSize), rand.nextInt(ySize), rand.nextInt(zSize), true);
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		final int[][] found = new int[xSize][ySize];
+		cube.searchPlane(20, pool, new PlaneListener()
+		{
+			@Override
+			public void found(int x, int y, int value)
+			{
+				found[x][y] = value;
+			}
+		});
+		long[] union = new long[4];
+		long[] expected = new long[4];
+		for (int x = 0; x < xSize; x++)
+		{
+			for (int y = 0; y < ySize; y++)
+			{
+				int bitCount = cube.getBitCountZ(x, y);
+				Assert.assertEquals(bitCount >= 20 ? bitCount : 0, found[x][y]);
+			}
+			cube.orAxisY(x, union, pool);
+			cube.orAxisY(x, expected);
+			Assert.assertArrayEquals(expected, union);
+		}
+		pool.shutdown();
+	}
+
+	@Test
+	public void testCursorZ()
+	{
+		Random rand = new Random(1);
+		BitCube cube = new BitCube(3, 5, 200);
+		for (int i = 0; i < 600; i++)
+			cube.set(rand.nextInt(3), rand.nextInt(5), rand.nextInt(200), true);
+		cube.setAxisZ(2, 4, false);
+		cube.set(2, 3, 199, true);
+
+		BitCube.ZCursor cursor = cube.newCursorZ();
+		Assert.assertEquals(-1, cursor.next());
+		for (int x = 0; x < 3; x++)
+		{
+			for (int y = 0; y < 5; y++)
+			{
+				final int[] expected = cube.getAxisZ(x, y);
+				cursor.reset(x, y);
+				for (int i = 0; i < expected.length; i++)
+					Assert.assertEquals(expected[i], cursor.next());
+				Assert.assertEquals(-1, cursor.next());
+				Assert.assertEquals(-1, cursor.next());
+
+				final int[] count = new int[1];
+				cube.forEachSetZ(x, y, new IntConsumer()
+				{
+					@Override
+					public void accept(int z)
+					{
+						Assert.assertEquals(expected[count[0]++], z);
+					}
+				});
+				Assert.assertEquals(expected.length, count[0]);
+			}
+		}
+	}
+
+	/**
+	 * compares iterating over axis-Z rows with {@link BitCube#getAxisZ(int, int)}, with a reused {@link BitCube.ZCursor} and with
+	 * {@link BitCube#forEachSetZ(int, int, IntConsumer)}
+	 */
+	@Test
+	@Ignore
+	public void stressCursorZ()
+	{
+		Random rand = new Random(1);
+		BitCube cube = new BitCube(64, 256, 1024);
+		for (int i = 0; i < 1_000_000; i++)
+			cube.set(rand.nextInt(64), rand.nextInt(256), rand.nextInt(1024), true);
+		final long[] sum = new long[1];
+		IntConsumer consumer = new IntConsumer()
+		{
+			@Override
+			public void accept(int z)
+			{
+				sum[0] += z;
+			}
+		};
+		BitCube.ZCursor cursor = cube.newCursorZ();
+		for (int rep = 0; rep < 5; rep++)
+		{
+			long before = System.nanoTime();
+			for (int i = 0; i < 100; i++)
+				for (int x = 0; x < 64; x++)
+					for (int y = 0; y < 256; y++)
+						for (int z : cube.getAxisZ(x, y))
+							sum[0] += z;
+			long arrayTime = System.nanoTime() - before;
+
+			before = System.nanoTime();
+			for (int i = 0; i < 100; i++)
+				for (int x = 0; x < 64; x++)
+					for (int y = 0; y < 256; y++)
+					{
+						cursor.reset(x, y);
+						for (int z = cursor.next(); z >= 0; z = cursor.next())
+							sum[0] += z;
+					}
+			long cursorTime = System.nanoTime() - before;
+
+			before = System.nanoTime();
+			for (int i = 0; i < 100; i++)
+				for (int x = 0; x < 64; x++)
+					for (int y = 0; y < 256; y++)
+						cube.forEachSetZ(x, y, consumer);
+			long consumerTime = System.nanoTime() - before;
+
+			int rows = 100 * 64 * 256;
+			System.out.println(String.format("getAxisZ: %d ns/row      ZCursor: %d ns/row      forEachSetZ: %d ns/row      (%d)", arrayTime
+					/ rows, cursorTime / rows, consumerTime / rows, sum[0]));
+		}
+	}
+
+	private static int naiveNextClear(boolean[] row, int from)
+	{
+		for (int z = from; z < row.length; z++)
+			if (!row[z])
+				return z;
+		return -1;
+	}
+
+	private static int naiveFirstRun(boolean[] row, int length)
+	{
+		for (int start = 0; start + length <= row.length; start++)
+		{
+			int z = start;
+			while (z < start + length && !row[z])
+				z++;
+			if (z == start + length)
+				return start;
+		}
+		return -1;
+	}
+
+	/**
+	 * compares the memory footprint of {@link SparseBitCube} with {@link BitCube}, where 90% of the axis-Z rows are empty, and the others
+	 * are 1% full
+	 */
+	@Test
+	@Ignore
+	public void stressSparse()
+	{
+		Random rand = new Random(1);
+		BitCube dense = new BitCube(1000, 1000, 1024);
+		SparseBitCube sparse = new SparseBitCube(1000, 1000, 1024);
+		for (int x = 0; x < 1000; x++)
+		{
+			for (int y = 0; y < 1000; y++)
+			{
+				if (rand.nextInt(10) > 0)
+					continue;
+				for (int i = 0; i < 10; i++)
+				{
+					int z = rand.nextInt(1024);
+					dense.set(x, y, z, true);
+					sparse.set(x, y, z, true);
+				}
+			}
+		}
+		System.out.println("BitCube:       " + dense.getBufferSize() / 1024 + " KB");
+		System.out.println("SparseBitCube: " + sparse.getBufferSize() / 1024 + " KB");
+	}
+
+	/**
+	 * compares the bulk plane scans of {@link BitCube} with the equivalent row-by-row calls
+	 */
+	@Test
+	@Ignore
+	public void stressBulkScans()
+	{
+		Random rand = new Random(1);
+		BitCube cube = new BitCube(64, 1024, 2048);
+		for (int i = 0; i < 10_000_000; i++)
+			cube.set(rand.nextInt(64), rand.nextInt(1024), rand.nextInt(2048), true);
+		int[] counts = new int[1024];
+		long[] union = new long[2048 / 64];
+		for (int rep = 0; rep < 5; rep++)
+		{
+			long sum = 0;
+			long before = System.nanoTime();
+			for (int x = 0; x < 64; x++)
+				for (int y = 0; y < 1024; y++)
+					sum += cube.getBitCountZ(x, y);
+			long rowCountTime = System.nanoTime() - before;
+
+			before = System.nanoTime();
+			for (int x = 0; x < 64; x++)
+			{
+				cube.getBitCountsZ(x, counts);
+				sum += counts[x];
+			}
+			long bulkCountTime = System.nanoTime() - before;
+
+			BitCube target = new BitCube(1, 1, 2048);
+			before = System.nanoTime();
+			for (int x = 0; x < 64; x++)
+				for (int y = 0; y < 1024; y++)
+					target.orZ(0, 0, cube, x, y);
+			long rowOrTime = System.nanoTime() - before;
+
+			before = System.nanoTime();
+			for (int x = 0; x < 64; x++)
+				cube.orAxisY(x, union);
+			long bulkOrTime = System.nanoTime() - before;
+
+			System.out.println(String.format("popcount: %d vs %d us      OR: %d vs %d us      (row-by-row vs bulk, %d)", rowCountTime / 1000,
+					bulkCountTime / 1000, rowOrTime / 1000, bulkOrTime / 1000, sum));
+		}
+	}
+
+	@Test
+	public void testConcurrentReservations() throws InterruptedException
+	{
+		final ConcurrentBitCube cube = new ConcurrentBitCube(1, 1, 1000);
+		final AtomicInteger reserved = new AtomicInteger();
+		ExecutorService exec = Executors.newFixedThreadPool(8);
+		for (int t = 0; t < 8; t++)
+		{
+			final int seed = t;
+			exec.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Random rand = new Random(seed);
+					for (int i = 0; i < 10_000; i++)
+					{
+						int from = rand.nextInt(990);
+						int length = 1 + rand.nextInt(10);
+						if (cube.compareAndSetRangeZ(0, 0, from, from + length, false, true))
+							reserved.addAndGet(length);
+					}
+				}
+			});
+		}
+		exec.shutdown();
+		exec.awaitTermination(1, TimeUnit.MINUTES);
+
+		// overlapping reservations would have made the bit-count lower than the sum of reserved lengths
+		Assert.assertEquals(reserved.get(), cube.getBitCountZ(0, 0));
+		int[] set = cube.getAxisZ(0, 0);
+		Assert.assertFalse(cube.compareAndSetRangeZ(0, 0, set[0], set[0] + 1, false, true));
+		Assert.assertTrue(cube.compareAndSetRangeZ(0, 0, set[0], set[0] + 1, true, false));
+	}
+
+	private static final int OPS = 10_000_000;
+
+	/**
+	 * compares setting disjoint bits by many threads in a {@link ConcurrentBitCube}, with doing so in a {@link BitCube} under a global lock
+	 */
+	@Test
+	@Ignore
+	public void stressConcurrent()
+	{
+		final int threads = 8;
+		for (int rep = 0; rep < 3; rep++)
+		{
+			final BitCube locked = new BitCube(16, 16, 1024);
+			long before = System.nanoTime();
+			new StressExecutor(0, OPS, threads, OPS / (threads * 16), new StressRunnable()
+			{
+				@Override
+				public void run(int index, int threadNo)
+				{
+					synchronized (locked)
+					{
+						locked.set((index >> 4) & 15, index & 15, (index >> 8) & 1023, true);
+					}
+				}
+			}).execute();
+			long lockedTime = System.nanoTime() - before;
+
+			final ConcurrentBitCube concurrent = new ConcurrentBitCube(16, 16, 1024);
+			before = System.nanoTime();
+			new StressExecutor(0, OPS, threads, OPS / (threads * 16), new StressRunnable()
+			{
+				@Override
+				public void run(int index, int threadNo)
+				{
+					concurrent.set((index >> 4) & 15, index & 15, (index >> 8) & 1023, true);
+				}
+			}).execute();
+			long concurrentTime = System.nanoTime() - before;
+
+			System.out.println(String.format("global lock: %d ns/op      CAS: %d ns/op", lockedTime / OPS, concurrentTime / OPS));
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.tectonica.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.tectonica.collections.ConcurrentIntMultimap;
+import com.tectonica.collections.ConcurrentMultimap;
+import com.tectonica.collections.ConcurrentNavigableIntMultimap;
+import com.tectonica.collections.ConcurrentNavigableMultimap;
+import com.tectonica.collections.ConcurrentTimeSeriesMultimap;
+
+public class TestConcurrentMultimap
+{
+	@Test
+	public void testCopyOnWrite()
+	{
+		ConcurrentMultimap<String, Integer> map = new ConcurrentMultimap<>(true, true);
+		Assert.assertEquals(1, map.put("a", 3));
+		Assert.assertEquals(2, map.put("a", 1));
+		Assert.assertEquals(2, map.put("a", 1));
+		Assert.assertEquals(0, map.put("b", 1, false));
+
+		Set<Integer> snapshot = map.get("a");
+		Assert.assertEquals(Arrays.asList(1, 3), new ArrayList<>(snapshot));
+		Assert.assertEquals(3, map.put("a", 2));
+		Assert.assertEquals(2, snapshot.size()); // not affected by later changes
+		try
+		{
+			snapshot.add(4);
+			Assert.fail("snapshot should be unmodifiable");
+		}
+		catch (UnsupportedOperationException e)
+		{}
+
+		final List<Integer> visited = new ArrayList<>();
+		map.forEach("a", new ConcurrentMultimap.Consumer<Integer>()
+		{
+			@Override
+			public void accept(Integer value)
+			{
+				visited.add(value);
+			}
+		});
+		Assert.assertEquals(Arrays.asList(1, 2, 3), visited);
+
+		Assert.assertEquals(2, map.remove("a", 2));
+		Assert.assertEquals(1, map.remove("a", 1));
+		Assert.assertEquals(0, map.remove("a", 3));
+		Assert.assertNull(map.get("a"));
+	}
+
+	@Test
+	public void testReverseIndex()
+	{
+		for (boolean copyOnWrite : new boolean[] { false, true })
+		{
+			ConcurrentMultimap<String, Integer> map = new ConcurrentMultimap<>(false, copyOnWrite, true);
+			map.put("a", 1);
+			map.put("b", 1);
+			map.put("b", 2);
+			map.put("c", 2);
+			Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")), map.keysOf(1));
+			Assert.assertNull(map.keysOf(3));
+
+			map.remove("a", 1);
+			Assert.assertEquals(new HashSet<>(Arrays.asList("b")), map.keysOf(1));
+
+			map.removeFromAll(2);
+			Assert.assertNull(map.keysOf(2));
+			Assert.assertNull(map.get("c"));
+			Assert.assertEquals(new HashSet<>(Arrays.asList(1)), map.get("b"));
+		}
+	}
+
+	@Test
+	public void testRangeScans()
+	{
+		ConcurrentNavigableMultimap<Integer, String> map = new ConcurrentNavigableMultimap<>(true);
+		for (int key = 0; key < 10; key++)
+		{
+			map.put(key, "x" + key);
+			map.put(key, "y" + key);
+		}
+
+		List<String> values = new ArrayList<>();
+		for (String value : map.iterateRange(3, true, 5, false))
+			values.add(value);
+		Assert.assertEquals(Arrays.asList("x3", "y3", "x4", "y4"), values);
+
+		Assert.assertEquals(Arrays.asList("y8", "x9"), map.getRange(7, false, null, true, 1, 2));
+		Assert.assertEquals(6, map.countRange(null, false, 3, false));
+		Assert.assertTrue(map.anyInRange(9, true, null, false));
+		Assert.assertFalse(map.anyInRange(10, true, null, false));
+	}
+
+	@Test
+	public void testTimeSeries()
+	{
+		ConcurrentTimeSeriesMultimap<String> map = new ConcurrentTimeSeriesMultimap<>(100L);
+		for (long time = -250L; time < 1000L; time += 50L)
+			map.put(time, "e" + time);
+		Assert.assertEquals(13, map.bucketCount());
+		Assert.assertEquals(new HashSet<>(Arrays.asList("e-50", "e0", "e50")), map.getRange(-50L, true, 100L, false));
+		Assert.assertEquals(25, map.countRange(Long.MIN_VALUE, true, Long.MAX_VALUE, true));
+
+		Assert.assertEquals(5, map.expireBefore(260L));
+		Assert.assertEquals(0, map.put(120L, "late"));
+		Assert.assertNull(map.get(250L));
+		Assert.assertEquals(Arrays.asList("e300", "e350"), list(map.iterateRange(0L, true, 399L, true)));
+		Assert.assertEquals(14, map.countRange(Long.MIN_VALUE, true, Long.MAX_VALUE, true));
+	}
+
+	@Test
+	public void testIntMultimap()
+	{
+		ConcurrentNavigableIntMultimap<String> map = new ConcurrentNavigableIntMultimap<>();
+		Assert.assertEquals(1, map.put("a", 5));
+		Assert.assertEquals(2, map.put("a", -1));
+		Assert.assertEquals(3, map.put("a", 3));
+		Assert.assertEquals(3, map.put("a", 3));
+		map.put("b", 3);
+		map.put("b", 7);
+		Assert.assertArrayEquals(new int[] { -1, 3, 5 }, map.get("a"));
+		Assert.assertTrue(map.contains("b", 7));
+		Assert.assertArrayEquals(new int[] { -1, 3, 5, 7 }, map.union(Arrays.asList("a", "b", "c")));
+		Assert.assertArrayEquals(new int[] { 3 }, map.intersection(Arrays.asList("a", "b")));
+		Assert.assertArrayEquals(new int[0], map.intersection(Arrays.asList("a", "c")));
+		Assert.assertArrayEquals(new int[] { 3, 7 }, map.getRange("b", null));
+
+		Assert.assertEquals(2, map.remove("a", 3));
+		Assert.assertEquals(2, map.remove("a", 4));
+		map.removeFromAll(5);
+		map.removeFromAll(-1);
+		Assert.assertNull(map.get("a"));
+	}
+
+	private static final int KEYS = 100_000;
+	private static final int VALUES_PER_KEY = 50;
+
+	/**
+	 * compares memory footprint and lookup time of {@link ConcurrentIntMultimap} with {@code ConcurrentMultimap<Integer, Integer>}
+	 */
+	@Test
+	@Ignore
+	public void stressIntMultimap() throws InterruptedException
+	{
+		Random rand = new Random(1);
+		int[] values = new int[KEYS * VALUES_PER_KEY];
+		for (int i = 0; i < values.length; i++)
+			values[i] = rand.nextInt(1_000_000);
+
+		long before = usedMemory();
+		ConcurrentIntMultimap<Integer> primitive = new ConcurrentIntMultimap<>();
+		for (int i = 0; i < values.length; i++)
+			primitive.put(i % KEYS, values[i]);
+		long primitiveBytes = usedMemory() - before;
+
+		before = usedMemory();
+		ConcurrentMultimap<Integer, Integer> boxed = new ConcurrentMultimap<>(false, true);
+		for (int i = 0; i < values.length; i++)
+			boxed.put(i % KEYS, values[i]);
+		long boxedBytes = usedMemory() - before;
+
+		for (int rep = 0; rep < 3; rep++)
+		{
+			long time = System.nanoTime();
+			long found = 0;
+			for (int i = 0; i < values.length; i++)
+				if (primitive.contains(i % KEYS, values[(i + 1) % values.length]))
+					found++;
+			long primitiveTime = System.nanoTime() - time;
+
+			time = System.nanoTime();
+			for (int i = 0; i < values.length; i++)
+				if (boxed.get(i % KEYS).contains(values[(i + 1) % values.length]))
+					found--;
+			long boxedTime = System.nanoTime() - time;
+
+			Assert.assertEquals(0, found);
+			System.out.println(String.format("int[]: %d bytes/value, %d ns/lookup      Set<Integer>: %d bytes/value, %d ns/lookup",
+					primitiveBytes / values.length, primitiveTime / values.length, boxedBytes / values.length, boxedTime / values.length));
+		}
+	}
+
+	private long usedMemory() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(200);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static <T> List<T> list(Iterable<T> iterable)
+	{
+		List<T> list = new ArrayList<>();
+		for (T item : iterable)
+			list.add(item);
+		return list;
+	}
+}
@@ -0,0 +1,74 @@
+package com.tectonica.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.tectonica.collections.ConcurrentRefCounter;
+
+public class TestConcurrentRefCounter
+{
+	@Test
+	public void test()
+	{
+		ConcurrentRefCounter<String> counter = new ConcurrentRefCounter<>();
+		Assert.assertEquals(1, counter.increase("a"));
+		Assert.assertEquals(2, counter.increase("a"));
+		Assert.assertEquals(1, counter.decrease("a"));
+		Assert.assertEquals(0, counter.decrease("a"));
+		Assert.assertEquals(-1, counter.decrease("a"));
+		Assert.assertEquals(0, counter.size());
+
+		List<String> keys = Arrays.asList("a", "b", "c");
+		counter.increaseAll(keys);
+		counter.increaseAll(keys);
+		counter.increase("a");
+		Assert.assertEquals(3, counter.count("a"));
+		Assert.assertEquals(2, counter.snapshot().get("b").intValue());
+		counter.decreaseAll(keys);
+		Assert.assertEquals(2, counter.decreaseAll(keys));
+		Assert.assertEquals(1, counter.snapshot().size());
+	}
+
+	@Test
+	public void testStriped() throws InterruptedException
+	{
+		final ConcurrentRefCounter<Integer> counter = new ConcurrentRefCounter<>(8);
+		final int threads = 8;
+		final int reps = 100_000;
+
+		// every thread holds a reference to key 0 throughout, while its other references come and go
+		counter.increase(0);
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++)
+		{
+			exec.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < reps; i++)
+					{
+						int key = i % 2;
+						counter.increase(key);
+						counter.increase(key);
+						counter.decrease(key);
+						counter.decrease(key);
+					}
+				}
+			});
+		}
+		exec.shutdown();
+		exec.awaitTermination(1, TimeUnit.MINUTES);
+
+		Assert.assertEquals(1, counter.count(0));
+		Assert.assertEquals(0, counter.count(1));
+		Assert.assertEquals(0, counter.decrease(0));
+		Assert.assertEquals(0, counter.size());
+	}
+}
@@ -1,9 +1,21 @@
 package com.tectonica.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -14,7 +26,14 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.tectonica.thirdparty.KryoPool;
+import com.tectonica.thirdparty.KryoReader;
 import com.tectonica.thirdparty.KryoUtil;
+import com.tectonica.thirdparty.KryoWriter;
 import com.tectonica.util.SerializeUtil;
 
 public class TestKryoUtil
@@ -45,6 +64,151 @@ public class TestKryoUtil
 		assertNotEquals(obj3, obj2);
 	}
 
+	@Test
+	public void testRegistration()
+	{
+		TestObj obj = TestObj.generate(3);
+		byte[] registered = KryoUtil.objToBytes(obj);
+		byte[] unregistered = unregisteredBytes(obj);
+		System.out.println("Registered: " + registered.length + " bytes, unregistered: " + unregistered.length + " bytes");
+		assertTrue(registered.length < unregistered.length);
+		assertEquals(obj, KryoUtil.bytesToObj(registered, TestObj.class));
+		Kryo kryo = KryoUtil.getPool().borrow();
+		try
+		{
+			assertEquals(100, kryo.getRegistration(TestObj.class).getId());
+		}
+		finally
+		{
+			KryoUtil.getPool().release(kryo);
+		}
+	}
+
+	@Test
+	public void testPool()
+	{
+		KryoPool pool = new KryoPool(2);
+		Kryo kryo1 = pool.borrow();
+		Kryo kryo2 = pool.borrow();
+		Kryo kryo3 = pool.borrow();
+		assertNotSame(kryo1, kryo2);
+		pool.release(kryo1);
+		pool.release(kryo2);
+		pool.release(kryo3); // discarded
+		assertEquals(2, pool.idleSize());
+		assertSame(kryo1, pool.borrow());
+		try
+		{
+			pool.release(new Kryo());
+			fail("foreign instances should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{}
+	}
+
+	@Test
+	public void testZeroCopy()
+	{
+		TestObj obj1 = TestObj.generate(2);
+		TestObj obj2 = TestObj.generate(1);
+		byte[] bytes = KryoUtil.objToBytes(obj1);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		KryoUtil.objToStream(obj1, os);
+		assertArrayEquals(bytes, os.toByteArray());
+
+		for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(4096), ByteBuffer.allocateDirect(4096) })
+		{
+			buffer.position(7);
+			assertEquals(bytes.length, KryoUtil.objToBuffer(obj1, buffer));
+			KryoUtil.objToBuffer(obj2, buffer);
+			buffer.flip();
+			buffer.position(7);
+			assertEquals(obj1, KryoUtil.bufferToObj(buffer, TestObj.class));
+			assertEquals(obj2, KryoUtil.bufferToObj(buffer, TestObj.class));
+			assertFalse(buffer.hasRemaining());
+		}
+
+		ByteBuffer small = ByteBuffer.allocateDirect(bytes.length - 1);
+		small.position(1);
+		try
+		{
+			KryoUtil.objToBuffer(obj1, small);
+			fail("overflow expected");
+		}
+		catch (KryoException e)
+		{
+			assertEquals(1, small.position());
+		}
+	}
+
+	@Test
+	public void testRecords() throws IOException
+	{
+		List<TestObj> objs = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			objs.add(TestObj.generate(i % 3));
+
+		File file = File.createTempFile("records", ".kryo");
+		try
+		{
+			try (KryoWriter writer = new KryoWriter(file))
+			{
+				writer.writeAll(objs.subList(0, 600));
+			}
+			try (KryoWriter writer = KryoWriter.append(file))
+			{
+				writer.writeAll(objs.subList(600, 1000));
+				assertEquals(400, writer.getCount());
+			}
+
+			int i = 0;
+			try (KryoReader<TestObj> reader = new KryoReader<>(file, TestObj.class))
+			{
+				for (TestObj obj : reader)
+					assertEquals(objs.get(i++), obj);
+				assertEquals(1000, reader.getCount());
+				assertNull(reader.read());
+			}
+			assertEquals(1000, i);
+
+			try (KryoReader<TestObj> reader = new KryoReader<>(file, TestObj.class))
+			{
+				for (i = 0; i < 999; i++)
+					assertTrue(reader.skip());
+				assertEquals(objs.get(999), reader.read());
+				assertFalse(reader.skip());
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try (KryoWriter writer = new KryoWriter(os))
+		{
+			writer.write(objs.get(2));
+		}
+		byte[] bytes = os.toByteArray();
+		try (KryoReader<TestObj> reader = new KryoReader<>(new ByteArrayInputStream(bytes, 0, bytes.length - 1), TestObj.class))
+		{
+			reader.read();
+			fail("truncated record expected");
+		}
+		catch (KryoException e)
+		{}
+	}
+
+	private static byte[] unregisteredBytes(Object obj)
+	{
+		Kryo kryo = new Kryo();
+		kryo.setReferences(false);
+		Output output = new Output(1024, -1);
+		kryo.writeObject(output, obj);
+		return output.toBytes();
+	}
+
 	private final int REPS = 10000;
 	private final int COMPLEXITY = 2;
 
@@ -55,12 +219,18 @@ public class TestKryoUtil
 		TestObj obj = TestObj.generate(COMPLEXITY);
 
 		System.out.println("Serialize bytes: " + SerializeUtil.objToBytes(obj).length);
-		System.out.println("Kryo bytes:      " + KryoUtil.objToBytes(obj).length);
+		System.out.println("Kryo bytes:      " + KryoUtil.objToBytes(obj).length + " (unregistered: " + unregisteredBytes(obj).length + ")");
+
+		stressRegistration(obj);
 
 		stressSerialize(obj);
 		stressSerialize(obj);
 		long serTime = stressSerialize(obj);
 
+		stressRecords(obj, serTime);
+		stressRecords(obj, serTime);
+		stressRecords(obj, serTime);
+
 		stressSafe(obj, serTime);
 		stressSafe(obj, serTime);
 		stressSafe(obj, serTime);
@@ -70,6 +240,40 @@ public class TestKryoUtil
 		stressUnsafe(obj, serTime);
 	}
 
+	/**
+	 * compares the round-trip time of a Kryo instance with the test classes registered, to that of an otherwise identical one without
+	 */
+	private void stressRegistration(TestObj obj) throws InterruptedException
+	{
+		Kryo unregistered = new Kryo();
+		unregistered.setReferences(false);
+		Kryo registered = new Kryo();
+		registered.setReferences(false);
+		new KryoTestConfigurator().configure(registered);
+
+		for (int round = 0; round < 5; round++) // alternating, so that both are equally warmed-up
+		{
+			pause();
+			long unregTime = roundTrips(unregistered, obj);
+			long regTime = roundTrips(registered, obj);
+			System.out.println("Kryo-Unregistered: " + (unregTime / REPS) + "   Kryo-Registered: " + (regTime / REPS)
+					+ "      Unregistered / Registered: " + (1.0 * unregTime / regTime));
+		}
+	}
+
+	private long roundTrips(Kryo kryo, TestObj obj)
+	{
+		Output output = new Output(1024, -1);
+		long before = System.nanoTime();
+		for (int i = 0; i < REPS; i++)
+		{
+			output.clear();
+			kryo.writeObject(output, obj);
+			kryo.readObject(new Input(output.getBuffer(), 0, output.position()), TestObj.class);
+		}
+		return System.nanoTime() - before;
+	}
+
 	private long stressSerialize(TestObj obj) throws InterruptedException
 	{
 		pause();
@@ -91,6 +295,25 @@ public class TestKryoUtil
 		System.out.println("Kryo-Safe: " + (time / REPS) + "      Serialize / Kryo: " + (1.0 * serTime / time));
 	}
 
+	private void stressRecords(TestObj obj, long serTime) throws InterruptedException
+	{
+		pause();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		long before = System.nanoTime();
+		try (KryoWriter writer = new KryoWriter(os))
+		{
+			for (int i = 0; i < REPS; i++)
+				writer.write(obj);
+		}
+		try (KryoReader<TestObj> reader = new KryoReader<>(new ByteArrayInputStream(os.toByteArray()), TestObj.class))
+		{
+			for (TestObj record : reader)
+				record.hashCode();
+		}
+		long time = System.nanoTime() - before;
+		System.out.println("Kryo-Log:  " + (time / REPS) + "      Serialize / Kryo: " + (1.0 * serTime / time));
+	}
+
 	private void stressUnsafe(TestObj obj, long serTime) throws InterruptedException
 	{
 		pause();
@@ -107,97 +330,97 @@ public class TestKryoUtil
 		Thread.sleep(1000);
 		System.gc();
 	}
-}
-
-class TestObj implements Serializable
-{
-	private static final long serialVersionUID = 10275539472837495L;
 
-	final boolean special;
-	final double[] prices;
-	final long[] quantities;
-	final String msg;
-	final List<TestObj> children;
-	final transient String transit;
-
-	public TestObj(boolean special, double[] prices, long[] quantities, String msg, List<TestObj> children)
+	public static class TestObj implements Serializable
 	{
-		this.special = special;
-		this.prices = prices;
-		this.quantities = quantities;
-		this.msg = msg;
-		this.children = children;
-		this.transit = "Here to go";
-	}
+		private static final long serialVersionUID = 10275539472837495L;
 
-	public static Random rand = new Random();
+		final boolean special;
+		final double[] prices;
+		final long[] quantities;
+		final String msg;
+		final List<TestObj> children;
+		final transient String transit;
 
-	public static TestObj generate(int childrenCount)
-	{
-		boolean special = rand.nextBoolean();
-		double[] prices = new double[] { rand.nextDouble(), rand.nextDouble(), rand.nextDouble() };
-		long[] quantities = new long[] { rand.nextLong(), rand.nextLong() };
-		String msg = Long.toHexString(rand.nextLong()) + Long.toHexString(rand.nextLong());
-		List<TestObj> children = null;
-		if (childrenCount > 0)
-		{
-			children = new ArrayList<>();
-			for (int i = 0; i < childrenCount; i++)
-				children.add(generate(childrenCount - 1));
-		}
-		return new TestObj(special, prices, quantities, msg, children);
-	}
+		public TestObj(boolean special, double[] prices, long[] quantities, String msg, List<TestObj> children)
+		{
+			this.special = special;
+			this.prices = prices;
+			this.quantities = quantities;
+			this.msg = msg;
+			this.children = children;
+			this.transit = "Here to go";
+		}
 
-	@Override
-	public int hashCode()
-	{
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((children == null) ? 0 : children.hashCode());
-		result = prime * result + ((msg == null) ? 0 : msg.hashCode());
-		result = prime * result + Arrays.hashCode(prices);
-		result = prime * result + Arrays.hashCode(quantities);
-		result = prime * result + (special ? 1231 : 1237);
-		return result;
-	}
+		public static Random rand = new Random();
 
-	@Override
-	public boolean equals(Object obj)
-	{
-		if (this == obj)
-			return true;
-		if (obj == null)
-			return false;
-		if (getClass() != obj.getClass())
-			return false;
-		TestObj other = (TestObj) obj;
-		if (children == null)
-		{
-			if (other.children != null)
-				return false;
+		public static TestObj generate(int childrenCount)
+		{
+			boolean special = rand.nextBoolean();
+			double[] prices = new double[] { rand.nextDouble(), rand.nextDouble(), rand.nextDouble() };
+			long[] quantities = new long[] { rand.nextLong(), rand.nextLong() };
+			String msg = Long.toHexString(rand.nextLong()) + Long.toHexString(rand.nextLong());
+			List<TestObj> children = null;
+			if (childrenCount > 0)
+			{
+				children = new ArrayList<>();
+				for (int i = 0; i < childrenCount; i++)
+					children.add(generate(childrenCount - 1));
+			}
+			return new TestObj(special, prices, quantities, msg, children);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + ((children == null) ? 0 : children.hashCode());
+			result = prime * result + ((msg == null) ? 0 : msg.hashCode());
+			result = prime * result + Arrays.hashCode(prices);
+			result = prime * result + Arrays.hashCode(quantities);
+			result = prime * result + (special ? 1231 : 1237);
+			return result;
 		}
-		else if (!children.equals(other.children))
-			return false;
-		if (msg == null)
+
+		@Override
+		public boolean equals(Object obj)
 		{
-			if (other.msg != null)
+			if (this == obj)
+				return true;
+			if (obj == null)
 				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			TestObj other = (TestObj) obj;
+			if (children == null)
+			{
+				if (other.children != null)
+					return false;
+			}
+			else if (!children.equals(other.children))
+				return false;
+			if (msg == null)
+			{
+				if (other.msg != null)
+					return false;
+			}
+			else if (!msg.equals(other.msg))
+				return false;
+			if (!Arrays.equals(prices, other.prices))
+				return false;
+			if (!Arrays.equals(quantities, other.quantities))
+				return false;
+			if (special != other.special)
+				return false;
+			return true;
 		}
-		else if (!msg.equals(other.msg))
-			return false;
-		if (!Arrays.equals(prices, other.prices))
-			return false;
-		if (!Arrays.equals(quantities, other.quantities))
-			return false;
-		if (special != other.special)
-			return false;
-		return true;
-	}
 
-	@Override
-	public String toString()
-	{
-		return "TestObj [special=" + special + ", prices=" + Arrays.toString(prices) + ", quantities=" + Arrays.toString(quantities)
-				+ ", msg=" + msg + ", children=" + children + "]";
+		@Override
+		public String toString()
+		{
+			return "TestObj [special=" + special + ", prices=" + Arrays.toString(prices) + ", quantities=" + Arrays.toString(quantities)
+					+ ", msg=" + msg + ", children=" + children + "]";
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,135 @@
+package com.tectonica.test;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.tectonica.collections.ConcurrentRefCounter;
+import com.tectonica.collections.IntRefCounter;
+import com.tectonica.collections.LongRefCounter;
+import com.tectonica.util.StressExecutor;
+import com.tectonica.util.StressExecutor.StressRunnable;
+
+public class TestPrimitiveRefCounter
+{
+	@Test
+	public void test()
+	{
+		IntRefCounter counter = new IntRefCounter(4, 4);
+		Random rand = new Random(1);
+		int[] expected = new int[1000];
+		for (int i = 0; i < 100_000; i++)
+		{
+			int key = rand.nextInt(expected.length);
+			if (rand.nextBoolean())
+				Assert.assertEquals(++expected[key], counter.increase(key - 500)); // including negative keys and zero
+			else
+				Assert.assertEquals(expected[key] == 0 ? -1 : --expected[key], counter.decrease(key - 500));
+		}
+		int size = 0;
+		for (int key = 0; key < expected.length; key++)
+		{
+			Assert.assertEquals(expected[key], counter.count(key - 500));
+			if (expected[key] > 0)
+				size++;
+		}
+		Assert.assertEquals(size, counter.size());
+	}
+
+	@Test
+	public void testLong()
+	{
+		LongRefCounter counter = new LongRefCounter();
+		long key = Long.MAX_VALUE - 1;
+		Assert.assertEquals(1, counter.increase(key));
+		Assert.assertEquals(2, counter.increase(key));
+		Assert.assertEquals(1, counter.increase(0L));
+		Assert.assertEquals(1, counter.decrease(key));
+		Assert.assertEquals(0, counter.decrease(key));
+		Assert.assertEquals(-1, counter.decrease(key));
+		Assert.assertEquals(1, counter.size());
+	}
+
+	private static final int KEYS = 10_000_000;
+	private static final int THREADS = 8;
+
+	/**
+	 * compares memory footprint and throughput of {@link LongRefCounter} with {@code ConcurrentRefCounter<Long>}, over 10M keys
+	 */
+	@Test
+	@Ignore
+	public void stress() throws InterruptedException
+	{
+		long before = usedMemory();
+		final LongRefCounter primitive = new LongRefCounter(64, KEYS);
+		fill(new StressRunnable()
+		{
+			@Override
+			public void run(int index, int threadNo)
+			{
+				primitive.increase(index * 31L);
+			}
+		});
+		long primitiveBytes = usedMemory() - before;
+		long primitiveTime = updateAll(new StressRunnable()
+		{
+			@Override
+			public void run(int index, int threadNo)
+			{
+				primitive.increase(index * 31L);
+				primitive.decrease(index * 31L);
+			}
+		});
+		System.out.println("LongRefCounter:             " + (primitiveBytes / KEYS) + " bytes/key, " + (primitiveTime / KEYS) + " ns/op");
+
+		before = usedMemory();
+		final ConcurrentRefCounter<Long> generic = new ConcurrentRefCounter<>();
+		fill(new StressRunnable()
+		{
+			@Override
+			public void run(int index, int threadNo)
+			{
+				generic.increase(index * 31L);
+			}
+		});
+		long genericBytes = usedMemory() - before;
+		long genericTime = updateAll(new StressRunnable()
+		{
+			@Override
+			public void run(int index, int threadNo)
+			{
+				generic.increase(index * 31L);
+				generic.decrease(index * 31L);
+			}
+		});
+		System.out.println("ConcurrentRefCounter<Long>: " + (genericBytes / KEYS) + " bytes/key, " + (genericTime / KEYS) + " ns/op");
+
+		Assert.assertEquals(KEYS, primitive.size());
+		Assert.assertEquals(KEYS, generic.size());
+	}
+
+	private void fill(StressRunnable runnable)
+	{
+		new StressExecutor(0, KEYS, THREADS, KEYS / (THREADS * 16), runnable).execute();
+	}
+
+	private long updateAll(StressRunnable runnable)
+	{
+		long before = System.nanoTime();
+		new StressExecutor(0, KEYS, THREADS, KEYS / (THREADS * 16), runnable).execute();
+		return System.nanoTime() - before;
+	}
+
+	private long usedMemory() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(200);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,248 @@
+package com.tectonica.test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.tectonica.util.LatencyHistogram;
+import com.tectonica.util.StressEngine;
+import com.tectonica.util.StressEngine.Report;
+import com.tectonica.util.StressExecutor;
+import com.tectonica.util.StressExecutor.StressRunnable;
+
+public class TestStressEngine
+{
+	@Test
+	public void testHistogram()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		Assert.assertEquals(0L, histogram.getPercentile(99.0));
+		for (long v = 1; v <= 100_000; v++)
+			histogram.record(v);
+		Assert.assertEquals(100_000L, histogram.getTotalCount());
+		Assert.assertEquals(100_000L, histogram.getMax());
+		assertClose(50_000L, histogram.getPercentile(50.0));
+		assertClose(99_000L, histogram.getPercentile(99.0));
+		assertClose(99_900L, histogram.getPercentile(99.9));
+		Assert.assertEquals(100_000L, histogram.getPercentile(100.0));
+
+		LatencyHistogram other = new LatencyHistogram();
+		other.record(Long.MAX_VALUE);
+		other.record(0L);
+		histogram.add(other);
+		Assert.assertEquals(Long.MAX_VALUE, histogram.getMax());
+		Assert.assertEquals(0L, histogram.getPercentile(0.0));
+
+		Random rand = new Random(1);
+		histogram.reset();
+		for (int i = 0; i < 1000; i++)
+			histogram.record(rand.nextInt(10) * 1_000_000L);
+		assertClose(9_000_000L, histogram.getPercentile(99.0));
+	}
+
+	private static void assertClose(long expected, long actual)
+	{
+		Assert.assertTrue("expected " + expected + " but was " + actual, Math.abs(expected - actual) <= expected / 100);
+	}
+
+	@Test
+	public void testClosedLoop() throws InterruptedException
+	{
+		final AtomicIntegerArray seen = new AtomicIntegerArray(4);
+		try (StressEngine engine = new StressEngine(4).warmup(50, TimeUnit.MILLISECONDS).measure(200, TimeUnit.MILLISECONDS))
+		{
+			for (int rep = 0; rep < 2; rep++)
+			{
+				Report report = engine.run(new StressRunnable()
+				{
+					@Override
+					public void run(int index, int threadNo)
+					{
+						Assert.assertEquals(threadNo, index % 4);
+						seen.incrementAndGet(threadNo);
+						if (index % 100 == 99)
+							throw new IllegalStateException("failure #" + index);
+					}
+				});
+				Assert.assertTrue(report.getOperations() > 1000);
+				Assert.assertTrue(report.getErrors() > 0);
+				Assert.assertTrue(report.getErrors() < report.getOperations() / 50);
+				Assert.assertNotNull(report.getFirstError());
+				Assert.assertEquals(report.getOperations(), report.getLatency().getTotalCount());
+			}
+
+			// an Error (e.g. a failed assertion) aborts the run, rather than being counted as an error
+			try
+			{
+				engine.run(new StressRunnable()
+				{
+					@Override
+					public void run(int index, int threadNo)
+					{
+						if (index == 50)
+							throw new AssertionError("failure #" + index);
+					}
+				});
+				Assert.fail("AssertionError expected");
+			}
+			catch (AssertionError e)
+			{
+				Assert.assertEquals("failure #50", e.getMessage());
+			}
+		}
+		for (int i = 0; i < 4; i++)
+			Assert.assertTrue(seen.get(i) > 0);
+	}
+
+	@Test
+	public void testOpenLoop() throws InterruptedException
+	{
+		try (StressEngine engine = new StressEngine(2).measure(500, TimeUnit.MILLISECONDS).targetRate(2_000))
+		{
+			Report report = engine.run(new StressRunnable()
+			{
+				@Override
+				public void run(int index, int threadNo)
+				{
+					if (index == 10)
+						sleep(100); // stalls the schedule of one thread, which is expected to be reflected in the tail latency
+				}
+			});
+			// the schedule caps the operations at 1,000 (500 ms at 2,000 ops/sec), while a loaded machine may fall behind it
+			Assert.assertTrue(report.getOperations() <= 1000 + 2);
+			Assert.assertTrue(report.getOperations() > 100);
+			Assert.assertTrue(report.getLatency().getMax() >= TimeUnit.MILLISECONDS.toNanos(100));
+			Assert.assertTrue(report.getLatency().getPercentile(99.0) >= TimeUnit.MILLISECONDS.toNanos(10));
+			System.out.println(report);
+		}
+	}
+
+	@Test
+	public void testAdaptiveSlicing()
+	{
+		final AtomicIntegerArray counts = new AtomicIntegerArray(100_000);
+		new StressExecutor(0, 100_000, 4, new StressRunnable()
+		{
+			@Override
+			public void run(int index, int threadNo)
+			{
+				counts.incrementAndGet(index);
+			}
+		}).execute();
+		for (int i = 0; i < counts.length(); i++)
+			Assert.assertEquals(1, counts.get(i));
+	}
+
+	@Test
+	public void testBlocking() throws InterruptedException
+	{
+		// each of the first 16 invocations blocks until all 16 are in flight, which is possible only with 16 concurrent threads
+		final int concurrency = 16;
+		final CountDownLatch allInFlight = new CountDownLatch(concurrency);
+		final AtomicIntegerArray counts = new AtomicIntegerArray(100);
+		final AtomicIntegerArray threadNos = new AtomicIntegerArray(concurrency);
+		new StressExecutor(0, counts.length(), 0, new StressRunnable()
+		{
+			@Override
+			public void run(int index, int threadNo)
+			{
+				allInFlight.countDown();
+				try
+				{
+					if (!allInFlight.await(10, TimeUnit.SECONDS))
+						throw new IllegalStateException("only " + (concurrency - allInFlight.getCount()) + " in flight");
+				}
+				catch (InterruptedException e)
+				{
+					throw new RuntimeException(e);
+				}
+				threadNos.incrementAndGet(threadNo); // out of bounds unless 0 <= threadNo < concurrency
+				counts.incrementAndGet(index);
+			}
+		}).executeBlocking(concurrency);
+
+		for (int i = 0; i < counts.length(); i++)
+			Assert.assertEquals(1, counts.get(i));
+		for (int i = 0; i < concurrency; i++)
+			Assert.assertTrue(threadNos.get(i) > 0);
+
+		// the first failure stops the execution, and is rethrown to the caller
+		final AtomicInteger runs = new AtomicInteger();
+		try
+		{
+			new StressExecutor(0, 1_000_000, 0, new StressRunnable()
+			{
+				@Override
+				public void run(int index, int threadNo)
+				{
+					runs.incrementAndGet();
+					if (index == 100)
+						throw new IllegalArgumentException("failed at " + index);
+				}
+			}).executeBlocking(4);
+			Assert.fail("exception expected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			Assert.assertEquals("failed at 100", e.getMessage());
+		}
+		Assert.assertTrue(runs.get() < 1_000_000);
+
+		try
+		{
+			new StressExecutor(0, 10, 0, null).executeBlocking(0);
+			Assert.fail("exception expected");
+		}
+		catch (IllegalArgumentException e)
+		{}
+	}
+
+	/**
+	 * blocking execution at scale: 20,000 invocations of 20 ms each, with up to 5,000 of them in flight
+	 */
+	@Test
+	@Ignore
+	public void stressBlocking() throws InterruptedException
+	{
+		final AtomicIntegerArray counts = new AtomicIntegerArray(20_000);
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		long before = System.nanoTime();
+		new StressExecutor(0, counts.length(), 0, new StressRunnable()
+		{
+			@Override
+			public void run(int index, int threadNo)
+			{
+				int current = inFlight.incrementAndGet();
+				if (current > maxInFlight.get())
+					maxInFlight.set(current); // approximate, which is enough here
+				sleep(20);
+				inFlight.decrementAndGet();
+				counts.incrementAndGet(index);
+			}
+		}).executeBlocking(5_000);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - before);
+
+		for (int i = 0; i < counts.length(); i++)
+			Assert.assertEquals(1, counts.get(i));
+		System.out.println(String.format("%,d invocations in %,d ms, max in flight: %,d", counts.length(), elapsed, maxInFlight.get()));
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}